@@ -0,0 +1,121 @@
+package hudson.plugins.rake;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Benchmarks of installation discovery and path resolution, run against fake ruby trees.
+ * They only use the discovery classes, as the builder and its descriptor need a running
+ * Jenkins. Run them with <code>mvn -Pbenchmark verify</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DiscoveryBenchmark {
+
+    @Param({"10", "100"})
+    public int size;
+
+    private FakeRubyTree tree;
+    private String path;
+    private Collection<File> candidates;
+    private RubyInstallation[] current;
+    private RubyInstallation gemset;
+    private String lastPathEntry;
+    private RvmScanner scanner;
+    private InstallationIndex index;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        tree = FakeRubyTree.create();
+        for (int i = 0; i < size; i++) {
+            tree.addPathDir("empty-" + i);
+        }
+        for (int i = 0; i < size / 10 + 1; i++) {
+            tree.addPathRuby("ruby-" + i, true);
+        }
+        path = tree.getPath();
+        lastPathEntry = "ruby";
+
+        tree.addRvmRuby("ruby-1.9.3");
+        tree.addGemset("ruby-1.9.3", true);
+        tree.addGemset("ruby-1.9.3@global", true);
+        for (int i = 0; i < size; i++) {
+            tree.addGemset("ruby-1.9.3@app" + i, i % 2 == 0);
+        }
+
+        candidates = Util.getRubyInstallations(path);
+        current = Util.getCanonicalRubies(new RubyInstallation[0], candidates);
+        RubyInstallation[] rvmRubies = RvmUtil.getRvmRubies(tree.getRvm());
+        gemset = rvmRubies[rvmRubies.length - 1];
+
+        scanner = new RvmScanner(tree.getRvm());
+        // an index kept in memory only, warmed so the benchmarks measure its cache hits
+        index = InstallationIndex.load(null);
+        index.getRubyInstallations(path);
+        index.getRvmRubies(tree.getRvm());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        tree.delete();
+    }
+
+    @Benchmark
+    public Collection<File> getRubyInstallations() throws IOException {
+        return Util.getRubyInstallations(path);
+    }
+
+    @Benchmark
+    public RubyInstallation[] getCanonicalRubies() {
+        return Util.getCanonicalRubies(current, candidates);
+    }
+
+    @Benchmark
+    public RubyInstallation[] getRvmRubies() {
+        return RvmUtil.getRvmRubies(tree.getRvm());
+    }
+
+    @Benchmark
+    public String findInPath() {
+        return Util.findInPath(lastPathEntry, path, File.pathSeparator);
+    }
+
+    @Benchmark
+    public File getExecutable() {
+        return Util.getExecutable(gemset.getPath(), gemset.getGemHome(), gemset.getGemPath());
+    }
+
+    @Benchmark
+    public RubyInstallation[] scanRvm() throws IOException {
+        return scanner.scan();
+    }
+
+    @Benchmark
+    public RubyInstallation resolveGemset() throws IOException {
+        return scanner.resolve("ruby-1.9.3@app0");
+    }
+
+    @Benchmark
+    public Collection<File> getIndexedRubyInstallations() throws IOException {
+        return index.getRubyInstallations(path);
+    }
+
+    @Benchmark
+    public RubyInstallation[] getIndexedRvmRubies() {
+        return index.getRvmRubies(tree.getRvm());
+    }
+}
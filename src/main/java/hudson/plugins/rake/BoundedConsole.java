@@ -0,0 +1,166 @@
+package hudson.plugins.rake;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Console view of the output of rake, fed by the launcher like the build log. It only passes on
+ * the first lines up to a size limit, with runs of similar lines such as progress output
+ * collapsed, then a periodic notice of the omitted output, and finally the tail of the output
+ * once rake is done. The complete output is written compressed to an archive as it comes.
+ */
+final class BoundedConsole extends OutputStream {
+
+    static final String ARCHIVE_NAME = "rake-output.log.gz";
+
+    private final OutputStream console;
+    private final OutputStream archive;
+    private final int tailBytes;
+    private final long noticeMillis;
+
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+    private final LinkedList<byte[]> tail = new LinkedList<byte[]>();
+    private long tailSize;
+    private boolean tailTruncated;
+
+    private long headRemaining;
+    private String lastKey;
+    private int repeats;
+    private long omittedLines;
+    private long omittedBytes;
+    private long lastNotice;
+
+    /**
+     * @param console Where the bounded view is written, left open on {@link #close()}.
+     * @param archive Where the complete output is compressed, closed on {@link #close()}.
+     */
+    BoundedConsole(OutputStream console, OutputStream archive, long headBytes, int tailBytes, long noticeMillis)
+            throws IOException {
+        this.console = console;
+        this.archive = new GZIPOutputStream(archive);
+        this.tailBytes = tailBytes;
+        this.noticeMillis = noticeMillis;
+        this.headRemaining = headBytes;
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        archive.write(b);
+        line.write(b);
+        if (b == '\n') {
+            line(line.toByteArray());
+            line.reset();
+        }
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        archive.write(b, off, len);
+        for (int i = off; i < off + len; i++) {
+            line.write(b[i]);
+            if (b[i] == '\n') {
+                line(line.toByteArray());
+                line.reset();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        console.flush();
+    }
+
+    /**
+     * Prints the tail of the output and completes the archive.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (line.size() > 0) {
+                line(line.toByteArray());
+                line.reset();
+            }
+            flushRepeats();
+            if (omittedLines > 0) {
+                writeTail();
+            }
+            console.flush();
+        } finally {
+            archive.close();
+        }
+    }
+
+    private void line(byte[] raw) throws IOException {
+        String text = new String(raw);
+        // progress bars redraw their line with carriage returns, only the last state matters
+        String visible = text.replaceAll("[\r\n]+$", "");
+        int cr = visible.lastIndexOf('\r');
+        if (cr >= 0) {
+            visible = visible.substring(cr + 1);
+        }
+        if (visible.contains(TaskTimingOutputStream.MARKER)) {
+            // task timings are picked out of the console afterwards, they are never omitted
+            console.write((visible + "\n").getBytes());
+            return;
+        }
+        if (headRemaining <= 0) {
+            keepInTail(raw);
+        }
+        String key = visible.replaceAll("\\d+", "#");
+        if (key.equals(lastKey)) {
+            repeats++;
+            return;
+        }
+        flushRepeats();
+        lastKey = key;
+        print(visible + "\n");
+    }
+
+    private void keepInTail(byte[] raw) {
+        tail.addLast(raw);
+        tailSize += raw.length;
+        while (tailSize > tailBytes && tail.size() > 1) {
+            tailSize -= tail.removeFirst().length;
+            tailTruncated = true;
+        }
+    }
+
+    private void flushRepeats() throws IOException {
+        if (repeats > 0) {
+            print("    (" + repeats + " similar line(s) collapsed)\n");
+            repeats = 0;
+        }
+    }
+
+    private void print(String text) throws IOException {
+        byte[] bytes = text.getBytes();
+        if (headRemaining > 0) {
+            console.write(bytes);
+            headRemaining -= bytes.length;
+            return;
+        }
+        omittedLines++;
+        omittedBytes += bytes.length;
+        long now = System.currentTimeMillis();
+        if (now - lastNotice >= noticeMillis) {
+            lastNotice = now;
+            console.write(("... " + omittedLines + " line(s) (" + omittedBytes / 1024 + " KB) omitted so far, the full output is archived as "
+                + ARCHIVE_NAME + "\n").getBytes());
+        }
+    }
+
+    private void writeTail() throws IOException {
+        console.write(("... " + omittedLines + " line(s) (" + omittedBytes / 1024 + " KB) omitted, "
+            + (tailTruncated ? "last " + tailSize / 1024 + " KB of the output:\n" : "the rest of the output:\n")).getBytes());
+        for (byte[] raw : tail) {
+            console.write(raw);
+            if (raw[raw.length - 1] != '\n') {
+                console.write('\n');
+            }
+        }
+        tail.clear();
+    }
+}
@@ -0,0 +1,338 @@
+package hudson.plugins.rake;
+
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.Launcher;
+import hudson.model.Node;
+import hudson.remoting.VirtualChannel;
+import hudson.util.ArgumentListBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Node local cache of installed bundles, keyed by the SHA-256 of Gemfile.lock, the ruby
+ * installation and its gems ABI. A build restores a copy of the matching bundle into its bundle
+ * path, checks it with <code>bundle check</code> and only runs <code>bundle install</code> on a
+ * miss. Bundles are copied in and out of the cache rather than hard linked, so a workspace can't
+ * modify a cached bundle; the copies are cloned where the filesystem supports copy-on-write, see
+ * {@link #copy(Launcher, FilePath, FilePath, PrintStream)}. The least recently used bundles are evicted when the cache of a node
+ * grows over its size limit, except those builds are copying.
+ */
+public class BundleCache implements Serializable {
+    public static final int DEFAULT_MAX_MEGABYTES = 2048;
+
+    static final String CACHE_DIR = "rake-bundle-cache";
+    static final String BUNDLE_PATH = "vendor/bundle";
+    private static final String SIZE_SUFFIX = ".size";
+    private static final String TMP_INFIX = ".tmp";
+
+    /**
+     * The bundles and temporary directories builds are copying, by name, on this node; eviction
+     * leaves them alone.
+     */
+    private static final Map<String, Integer> inUse = new HashMap<String, Integer>();
+
+    private final int maxMegabytes;
+
+    @DataBoundConstructor
+    public BundleCache(int maxMegabytes) {
+        this.maxMegabytes = maxMegabytes > 0 ? maxMegabytes : DEFAULT_MAX_MEGABYTES;
+    }
+
+    /**
+     * Maximum size of the bundle cache of a node, in megabytes.
+     */
+    public int getMaxMegabytes() {
+        return maxMegabytes;
+    }
+
+    /**
+     * Makes the bundle of the working directory available, from the cache when possible,
+     * and points <code>BUNDLE_PATH</code> at it.
+     * @return <code>false</code> if the bundle couldn't be installed.
+     */
+    boolean prepare(Node node, Launcher launcher, RubyInstallation rake, String bundle, Map<String, String> env,
+            FilePath workingDir, PrintStream logger) throws IOException, InterruptedException {
+        FilePath nodeRoot = node != null ? node.getRootPath() : null;
+        String gemfile = env.get("BUNDLE_GEMFILE");
+        FilePath lock = gemfile != null ? new FilePath(workingDir, gemfile + ".lock") : workingDir.child("Gemfile.lock");
+        if (nodeRoot == null || !lock.exists()) {
+            logger.println("No Gemfile.lock found, the bundle cache is not used");
+            return true;
+        }
+
+        FilePath bundleDir = workingDir.child(BUNDLE_PATH);
+        env.put("BUNDLE_PATH", bundleDir.getRemote());
+
+        String key = lock.act(new CacheKey(rake != null ? rake.getPath() : null))
+            + "-" + sanitize(rake != null ? rake.getName() : "default");
+        FilePath root = nodeRoot.child(CACHE_DIR);
+        FilePath entry = root.child(key);
+
+        if (!bundleDir.exists()) {
+            root.act(new Use(key, true));
+            try {
+                if (entry.exists()) {
+                    logger.println("Restoring the bundle " + key + " from the cache");
+                    copy(launcher, entry, bundleDir, logger);
+                    entry.touch(System.currentTimeMillis());
+                }
+            } finally {
+                root.act(new Use(key, false));
+            }
+        }
+
+        if (bundle(launcher, bundle, "check", env, workingDir, logger) == 0) {
+            return true;
+        }
+        if (bundle(launcher, bundle, "install", env, workingDir, logger) != 0) {
+            return false;
+        }
+
+        if (!entry.exists()) {
+            logger.println("Storing the bundle " + key + " in the cache");
+            root.mkdirs();
+            String tmpName = key + TMP_INFIX + System.nanoTime();
+            FilePath tmp = root.child(tmpName);
+            root.act(new Use(tmpName, true));
+            try {
+                copy(launcher, bundleDir, tmp, logger);
+                if (entry.exists()) {
+                    tmp.deleteRecursive();
+                } else {
+                    tmp.renameTo(entry);
+                    root.child(key + SIZE_SUFFIX).write(String.valueOf(entry.act(new Size())), "UTF-8");
+                }
+            } finally {
+                root.act(new Use(tmpName, false));
+            }
+        }
+        root.act(new Eviction(maxMegabytes * 1024L * 1024L));
+        return true;
+    }
+
+    private static int bundle(Launcher launcher, String bundle, String command, Map<String, String> env,
+            FilePath workingDir, PrintStream logger) throws IOException, InterruptedException {
+        return launcher.launch().cmds(bundle, command).envs(env).stdout(logger).pwd(workingDir).join();
+    }
+
+    /**
+     * Copies a directory tree, sharing the blocks of the files where the filesystem can. On unix
+     * the copy is made with GNU <code>cp -a --reflink=auto</code>, which clones the files on
+     * copy-on-write filesystems such as Btrfs and XFS, then with <code>cp -ac</code>, which clones
+     * them on APFS, both keeping the symbolic links and permissions. Only when neither of them is
+     * available, the files are copied byte by byte with <code>cp -a</code>, or through the channel
+     * elsewhere. A cloned file is still a copy, so changing it in the workspace doesn't change the
+     * cache.
+     */
+    static void copy(Launcher launcher, FilePath from, FilePath to, PrintStream logger)
+            throws IOException, InterruptedException {
+        to.getParent().mkdirs();
+        if (launcher.isUnix()) {
+            ByteArrayOutputStream errors = new ByteArrayOutputStream();
+            for (String[] cp : COPY_COMMANDS) {
+                ArgumentListBuilder args = new ArgumentListBuilder(cp);
+                args.add(from.getRemote(), to.getRemote());
+                errors.reset();
+                if (launcher.launch().cmds(args).stdout(errors).join() == 0) {
+                    return;
+                }
+                to.deleteRecursive();
+            }
+            logger.write(errors.toByteArray());
+        }
+        from.copyRecursiveTo(to);
+    }
+
+    private static final String[][] COPY_COMMANDS = {
+        {"cp", "-a", "--reflink=auto"},
+        {"cp", "-ac"},
+        {"cp", "-a"},
+    };
+
+    static String sanitize(String name) {
+        return name.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    /**
+     * SHA-256 of Gemfile.lock followed by the gems ABI of the ruby installation.
+     */
+    private static final class CacheKey implements FileCallable<String> {
+        private final String rubyHome;
+
+        CacheKey(String rubyHome) {
+            this.rubyHome = rubyHome;
+        }
+
+        public String invoke(File lock, VirtualChannel channel) throws IOException {
+            MessageDigest sha;
+            try {
+                sha = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e.getMessage());
+            }
+            InputStream in = new FileInputStream(lock);
+            try {
+                byte[] buf = new byte[8192];
+                int len;
+                while ((len = in.read(buf)) >= 0) {
+                    sha.update(buf, 0, len);
+                }
+            } finally {
+                in.close();
+            }
+
+            StringBuilder abi = new StringBuilder();
+            if (rubyHome != null) {
+                for (File gemsDir : Util.getGemsDir(rubyHome)) {
+                    abi.append('-').append(gemsDir.getName());
+                }
+            }
+            return hudson.Util.toHexString(sha.digest()) + sanitize(abi.toString());
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final class Size implements FileCallable<Long> {
+        public Long invoke(File dir, VirtualChannel channel) {
+            return size(dir);
+        }
+
+        private static long size(File file) {
+            File[] children = file.listFiles();
+            if (children == null) {
+                return file.length();
+            }
+            long size = 0;
+            for (File child : children) {
+                size += size(child);
+            }
+            return size;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Marks a bundle or temporary directory of the cache as being copied, or no longer.
+     */
+    private static final class Use implements FileCallable<Void> {
+        private final String name;
+        private final boolean acquire;
+
+        Use(String name, boolean acquire) {
+            this.name = name;
+            this.acquire = acquire;
+        }
+
+        public Void invoke(File root, VirtualChannel channel) {
+            synchronized (inUse) {
+                Integer count = inUse.get(name);
+                int updated = (count != null ? count : 0) + (acquire ? 1 : -1);
+                if (updated > 0) {
+                    inUse.put(name, updated);
+                } else {
+                    inUse.remove(name);
+                }
+            }
+            return null;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Deletes the temporary directories left by interrupted stores, then the least recently used
+     * bundles until the cache fits in its size limit.
+     */
+    private static final class Eviction implements FileCallable<Void> {
+        private final long maxBytes;
+
+        Eviction(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        public Void invoke(File root, VirtualChannel channel) throws IOException {
+            File[] files = root.listFiles();
+            if (files == null) {
+                return null;
+            }
+            List<File> entries = new ArrayList<File>();
+            long total = 0;
+            for (File file : files) {
+                if (!file.isDirectory()) {
+                    continue;
+                }
+                if (file.getName().contains(TMP_INFIX)) {
+                    delete(root, file);
+                } else {
+                    entries.add(file);
+                    total += getSize(file);
+                }
+            }
+            Collections.sort(entries, new Comparator<File>() {
+                public int compare(File a, File b) {
+                    return a.lastModified() < b.lastModified() ? -1 : (a.lastModified() == b.lastModified() ? 0 : 1);
+                }
+            });
+            for (File entry : entries) {
+                if (total <= maxBytes) {
+                    break;
+                }
+                long size = getSize(entry);
+                if (delete(root, entry)) {
+                    total -= size;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Deletes a bundle or temporary directory unless a build is copying it, holding off new
+         * copies meanwhile.
+         */
+        private static boolean delete(File root, File entry) throws IOException {
+            synchronized (inUse) {
+                if (inUse.containsKey(entry.getName())) {
+                    return false;
+                }
+                hudson.Util.deleteRecursive(entry);
+            }
+            new File(root, entry.getName() + SIZE_SUFFIX).delete();
+            return true;
+        }
+
+        private static long getSize(File entry) throws IOException {
+            File size = new File(entry.getParentFile(), entry.getName() + SIZE_SUFFIX);
+            if (size.exists()) {
+                try {
+                    return Long.parseLong(hudson.Util.loadFile(size).trim());
+                } catch (NumberFormatException e) {
+                    // recompute it below
+                }
+            }
+            return Size.size(entry);
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final long serialVersionUID = 1L;
+}
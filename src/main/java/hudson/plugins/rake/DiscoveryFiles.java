@@ -0,0 +1,42 @@
+package hudson.plugins.rake;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+
+/**
+ * The file system calls the discovery of the ruby installations makes, in one place so a test
+ * can count them. A scan on a remote or NFS mounted tree pays for every one of them.
+ */
+class DiscoveryFiles {
+
+    static final DiscoveryFiles DIRECT = new DiscoveryFiles();
+
+    boolean exists(File file) {
+        return file.exists();
+    }
+
+    boolean isFile(File file) {
+        return file.isFile();
+    }
+
+    boolean isDirectory(File file) {
+        return file.isDirectory();
+    }
+
+    File[] listFiles(File dir) {
+        return dir.listFiles();
+    }
+
+    File[] listFiles(File dir, FilenameFilter filter) {
+        return dir.listFiles(filter);
+    }
+
+    String[] list(File dir, FilenameFilter filter) {
+        return dir.list(filter);
+    }
+
+    File getCanonicalFile(File file) throws IOException {
+        return file.getCanonicalFile();
+    }
+}
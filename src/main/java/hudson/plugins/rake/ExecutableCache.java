@@ -0,0 +1,108 @@
+package hudson.plugins.rake;
+
+import hudson.FilePath;
+import hudson.remoting.Callable;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Rake and bundle executables already resolved on each node. Resolving an installation's
+ * executable probes every entry of its gem path; a cached executable is only checked with a
+ * single stat of the resolved file, and is resolved again when that file is gone. The cache of
+ * a node is dropped when its installations are discovered again.
+ */
+final class ExecutableCache {
+
+    private static final ConcurrentMap<String, String> executables = new ConcurrentHashMap<String, String>();
+
+    private ExecutableCache() {
+    }
+
+    /**
+     * Resolves the rake or bundle executable of an installation on the node the channel belongs to.
+     * @return The path of the executable, or <code>null</code> if it doesn't exist.
+     */
+    static String getExecutable(String nodeName, VirtualChannel channel, RubyInstallation rake, boolean bundleExec)
+            throws IOException, InterruptedException {
+        String key = key(nodeName, rake.getName(), rake.getPath(), rake.getGemHome(), rake.getGemPath(),
+            String.valueOf(bundleExec));
+        String exec = executables.get(key);
+        if (exec != null) {
+            if (new FilePath(channel, exec).exists()) {
+                return exec;
+            }
+            executables.remove(key, exec);
+        }
+
+        exec = channel.call(new ExecutableResolver(rake, bundleExec));
+        if (exec != null) {
+            executables.put(key, exec);
+        }
+        return exec;
+    }
+
+    /**
+     * Looks an executable up in the PATH, see {@link Util#findInPath(String, String, String)}.
+     */
+    static String findInPath(String nodeName, String executable, String path, String pathSeparator) {
+        String key = key(nodeName, executable, path);
+        String exec = executables.get(key);
+        if (exec != null) {
+            if (new File(exec).exists()) {
+                return exec;
+            }
+            executables.remove(key, exec);
+        }
+
+        exec = Util.findInPath(executable, path, pathSeparator);
+        if (!exec.equals(executable)) {
+            executables.put(key, exec);
+        }
+        return exec;
+    }
+
+    static void invalidate(String nodeName) {
+        String prefix = nodeName + "\0";
+        for (String key : executables.keySet()) {
+            if (key.startsWith(prefix)) {
+                executables.remove(key);
+            }
+        }
+    }
+
+    static void invalidateAll() {
+        executables.clear();
+    }
+
+    private static String key(String nodeName, String... parts) {
+        StringBuilder key = new StringBuilder(nodeName);
+        for (String part : parts) {
+            key.append('\0').append(part);
+        }
+        return key.toString();
+    }
+
+    /**
+     * Probes the gem path of an installation where it lives, returning the executable only if it exists.
+     */
+    private static final class ExecutableResolver implements Callable<String, IOException> {
+        private final RubyInstallation rake;
+        private final boolean bundleExec;
+
+        ExecutableResolver(RubyInstallation rake, boolean bundleExec) {
+            this.rake = rake;
+            this.bundleExec = bundleExec;
+        }
+
+        public String call() throws IOException {
+            File exec = bundleExec ? rake.getBundleExecutable() : rake.getExecutable();
+            return exec.exists() ? exec.getPath() : null;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+}
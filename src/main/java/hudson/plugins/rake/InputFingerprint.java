@@ -0,0 +1,135 @@
+package hudson.plugins.rake;
+
+import hudson.FilePath.FileCallable;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.types.FileSet;
+
+/**
+ * Fingerprint of the files matching a set of globs under a directory. Files are hashed in
+ * parallel, and a file whose size and modification time didn't change since it was last hashed
+ * on the node reuses its previous digest instead of being read again, as long as it is among
+ * the most recently hashed files.
+ */
+final class InputFingerprint implements FileCallable<String> {
+
+    private static final int CACHE_SIZE = 100000;
+
+    private static final Map<String, FileDigest> digests = Collections.synchronizedMap(
+        new LinkedHashMap<String, FileDigest>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, FileDigest> eldest) {
+                return size() > CACHE_SIZE;
+            }
+        });
+
+    private final String includes;
+
+    /**
+     * @param includes Ant style globs separated by commas or new lines.
+     */
+    InputFingerprint(String includes) {
+        this.includes = includes.trim().replaceAll("\\s*[,\r\n]+\\s*", ",");
+    }
+
+    public String invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+        FileSet fileSet = hudson.Util.createFileSet(dir, includes);
+        DirectoryScanner scanner = fileSet.getDirectoryScanner(new org.apache.tools.ant.Project());
+        String[] files = scanner.getIncludedFiles();
+        Arrays.sort(files);
+
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            List<Future<String>> futures = new ArrayList<Future<String>>();
+            for (String name : files) {
+                final File file = new File(dir, name);
+                futures.add(executor.submit(new Callable<String>() {
+                    public String call() throws IOException {
+                        return digest(file);
+                    }
+                }));
+            }
+
+            MessageDigest md5 = md5();
+            for (int i = 0; i < files.length; i++) {
+                md5.update(files[i].getBytes("UTF-8"));
+                md5.update((byte) 0);
+                md5.update(futures.get(i).get().getBytes("UTF-8"));
+                md5.update((byte) '\n');
+            }
+            return hudson.Util.toHexString(md5.digest());
+        } catch (ExecutionException e) {
+            IOException ioe = new IOException("Unable to fingerprint the inputs of " + dir);
+            ioe.initCause(e.getCause());
+            throw ioe;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    static String digest(File file) throws IOException {
+        String path = file.getAbsolutePath();
+        long length = file.length();
+        long modified = file.lastModified();
+        FileDigest cached = digests.get(path);
+        if (cached != null && cached.length == length && cached.modified == modified) {
+            return cached.digest;
+        }
+
+        MessageDigest md5 = md5();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buf = new byte[8192];
+            int len;
+            while ((len = in.read(buf)) >= 0) {
+                md5.update(buf, 0, len);
+            }
+        } finally {
+            in.close();
+        }
+        String digest = hudson.Util.toHexString(md5.digest());
+        digests.put(path, new FileDigest(length, modified, digest));
+        return digest;
+    }
+
+    private static MessageDigest md5() throws IOException {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    private static final class FileDigest {
+        private final long length;
+        private final long modified;
+        private final String digest;
+
+        FileDigest(long length, long modified, String digest) {
+            this.length = length;
+            this.modified = modified;
+            this.digest = digest;
+        }
+    }
+
+    private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,202 @@
+package hudson.plugins.rake;
+
+import hudson.XmlFile;
+import hudson.model.Hudson;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Persistent index of the ruby installations discovered in the PATH and in the RVM tree.
+ * Every entry remembers the modification time of the files and directories it was computed from,
+ * so a reload only rescans the entries whose fingerprint changed.
+ */
+final class InstallationIndex {
+
+    private static final Logger LOGGER = Logger.getLogger(InstallationIndex.class.getName());
+
+    static final String FILE_NAME = "hudson.plugins.rake.InstallationIndex.xml";
+
+    private Map<String, PathEntry> pathEntries = new HashMap<String, PathEntry>();
+    private Map<String, RvmEntry> rvmEntries = new HashMap<String, RvmEntry>();
+
+    private transient File file;
+    private transient boolean dirty;
+
+    private InstallationIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Loads the index stored under JENKINS_HOME, or an empty in-memory index
+     * when Jenkins is not running.
+     */
+    static InstallationIndex load() {
+        Hudson hudson = Hudson.getInstance();
+        return load(hudson != null ? new File(hudson.getRootDir(), FILE_NAME) : null);
+    }
+
+    static InstallationIndex load(File file) {
+        InstallationIndex index = null;
+        if (file != null && file.exists()) {
+            try {
+                index = (InstallationIndex) getXmlFile(file).read();
+                index.file = file;
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Unable to read the ruby installations index " + file, e);
+            } catch (ClassCastException e) {
+                LOGGER.log(Level.WARNING, "Unexpected content in the ruby installations index " + file, e);
+            }
+        }
+        return index != null ? index : new InstallationIndex(file);
+    }
+
+    /**
+     * Detects the ruby installations in the given PATH, reusing the result of
+     * every PATH entry whose fingerprint is unchanged.
+     */
+    synchronized Collection<File> getRubyInstallations(String systemPath) throws IOException {
+        Collection<File> rubyVersions = new LinkedHashSet<File>();
+
+        if (systemPath != null) {
+            Collection<String> candidates = new LinkedHashSet<String>(Arrays.asList(systemPath.split(File.pathSeparator)));
+            for (String path : candidates) {
+                PathEntry entry = pathEntries.get(path);
+                if (entry == null || !entry.isValid()) {
+                    entry = PathEntry.scan(path);
+                    pathEntries.put(path, entry);
+                    dirty = true;
+                }
+                for (String home : entry.homes) {
+                    rubyVersions.add(new File(home));
+                }
+            }
+        }
+
+        save();
+        return rubyVersions;
+    }
+
+    /**
+     * Gets the installations of the given RVM tree, scanning it again only when
+     * a ruby or a gemset was added, removed or modified.
+     */
+    synchronized RubyInstallation[] getRvmRubies(Rvm rvm) {
+        RvmEntry entry = rvmEntries.get(rvm.getPath());
+        if (entry == null || !entry.isValid()) {
+            entry = RvmEntry.scan(rvm);
+            rvmEntries.put(rvm.getPath(), entry);
+            dirty = true;
+        }
+
+        save();
+        return entry.rubies.clone();
+    }
+
+    private void save() {
+        if (!dirty || file == null) return;
+        try {
+            getXmlFile(file).write(this);
+            dirty = false;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to write the ruby installations index " + file, e);
+        }
+    }
+
+    private static XmlFile getXmlFile(File file) {
+        return new XmlFile(Hudson.XSTREAM, file);
+    }
+
+    /**
+     * Modification times of the files an index entry was computed from.
+     */
+    static final class Stamps {
+        private final Map<String, Long> modified = new LinkedHashMap<String, Long>();
+
+        void add(File file) {
+            modified.put(file.getAbsolutePath(), file.lastModified());
+        }
+
+        void addGems(File home) {
+            for (File gems : Util.getDefaultGemPaths(home.getAbsolutePath())) {
+                add(gems);
+            }
+            for (File gemsDir : Util.getGemsDir(home.getAbsolutePath())) {
+                add(new File(gemsDir, "specifications"));
+            }
+        }
+
+        boolean isValid() {
+            for (Map.Entry<String, Long> stamp : modified.entrySet()) {
+                if (new File(stamp.getKey()).lastModified() != stamp.getValue()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    static final class PathEntry {
+        private final Stamps stamps = new Stamps();
+        private final Collection<String> homes = new LinkedHashSet<String>();
+
+        static PathEntry scan(String path) throws IOException {
+            PathEntry entry = new PathEntry();
+            entry.stamps.add(new File(path));
+
+            for (File exec : Util.getRubyExecutables(path)) {
+                entry.stamps.add(exec);
+                if (exec.isFile()) {
+                    File parent = exec.getCanonicalFile().getParentFile();
+                    entry.stamps.addGems(parent);
+                    if (parent.getParentFile() != null) {
+                        entry.stamps.addGems(parent.getParentFile());
+                    }
+                }
+            }
+            for (File home : Util.getRubyInstallationsIn(path)) {
+                entry.homes.add(home.getPath());
+            }
+            return entry;
+        }
+
+        boolean isValid() {
+            return stamps.isValid();
+        }
+    }
+
+    static final class RvmEntry {
+        private final Stamps stamps = new Stamps();
+        private RubyInstallation[] rubies;
+
+        static RvmEntry scan(Rvm rvm) {
+            RvmEntry entry = new RvmEntry();
+            File rubiesDir = new File(rvm.getPath(), "rubies");
+            File gemsDir = new File(rvm.getPath(), "gems");
+
+            entry.stamps.add(rubiesDir);
+            entry.stamps.add(gemsDir);
+            File[] gemsets = gemsDir.listFiles();
+            if (gemsets != null) {
+                for (File gemset : gemsets) {
+                    entry.stamps.add(gemset);
+                    entry.stamps.add(new File(gemset, "specifications"));
+                }
+            }
+            entry.rubies = RvmUtil.getRvmRubies(rvm);
+            return entry;
+        }
+
+        boolean isValid() {
+            return stamps.isValid();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package hudson.plugins.rake;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+
+import java.io.File;
+
+/**
+ * Discovers the installations again in the background when the RVM tree changes, so new rubies
+ * and gemsets show up without a build paying for the scan. Creating or removing a ruby or a
+ * gemset changes the modification time of the <code>rubies</code> or <code>gems</code>
+ * directory, so watching the tree costs two stats per period.
+ */
+@Extension
+public class InstallationRefresher extends AsyncPeriodicWork {
+
+    private static final long PERIOD = Long.getLong(InstallationRefresher.class.getName() + ".period", MIN);
+
+    private String lastRvm;
+    private long lastRubies;
+    private long lastGems;
+
+    public InstallationRefresher() {
+        super("Ruby installations refresh");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return PERIOD;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) {
+        Rvm rvm = Rake.DESCRIPTOR.getRvmOrDefault();
+        if (rvm == null) {
+            return;
+        }
+
+        long rubies = new File(rvm.getPath(), "rubies").lastModified();
+        long gems = new File(rvm.getPath(), "gems").lastModified();
+        boolean changed = !rvm.getPath().equals(lastRvm) || rubies != lastRubies || gems != lastGems;
+        boolean first = lastRvm == null;
+        lastRvm = rvm.getPath();
+        lastRubies = rubies;
+        lastGems = gems;
+
+        // the scan starts after the times are read, so a change made meanwhile is seen next period
+        if (changed && !first) {
+            listener.getLogger().println("The RVM tree " + rvm.getPath() + " changed, discovering the installations again");
+            Rake.DESCRIPTOR.loadInstallations();
+        }
+    }
+}
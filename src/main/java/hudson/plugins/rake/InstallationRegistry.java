@@ -0,0 +1,153 @@
+package hudson.plugins.rake;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Immutable snapshot of the known ruby installations, indexed by name and by canonical
+ * executable. A new snapshot replaces the previous one atomically, so a build always looks
+ * installations up in a consistent list.
+ */
+final class InstallationRegistry {
+
+    static final InstallationRegistry EMPTY = new InstallationRegistry(new RubyInstallation[0]);
+
+    private final RubyInstallation[] installations;
+    private final Map<String, RubyInstallation> byName;
+
+    /**
+     * Built on first use, since canonicalizing every executable touches the disk.
+     */
+    private volatile Map<File, RubyInstallation> byExecutable;
+
+    InstallationRegistry(RubyInstallation[] installations) {
+        this.installations = installations.clone();
+        Map<String, RubyInstallation> names = new HashMap<String, RubyInstallation>();
+        for (RubyInstallation ruby : this.installations) {
+            // the first installation of a name wins, as with a linear scan
+            if (!names.containsKey(ruby.getName())) {
+                names.put(ruby.getName(), ruby);
+            }
+        }
+        this.byName = Collections.unmodifiableMap(names);
+    }
+
+    RubyInstallation[] getInstallations() {
+        return installations.clone();
+    }
+
+    int size() {
+        return installations.length;
+    }
+
+    RubyInstallation get(String name) {
+        return name != null ? byName.get(name) : null;
+    }
+
+    RubyInstallation getByExecutable(File canonicalExecutable) {
+        Map<File, RubyInstallation> executables = byExecutable;
+        if (executables == null) {
+            executables = new HashMap<File, RubyInstallation>();
+            for (RubyInstallation ruby : installations) {
+                try {
+                    File exec = ruby.getCanonicalExecutable();
+                    if (!executables.containsKey(exec)) {
+                        executables.put(exec, ruby);
+                    }
+                } catch (IOException e) {
+                    // such an installation can't match any executable
+                }
+            }
+            byExecutable = executables = Collections.unmodifiableMap(executables);
+        }
+        return executables.get(canonicalExecutable);
+    }
+
+    /**
+     * A snapshot with the installations of this one and the given ruby homes, skipping the homes
+     * whose executable is already known.
+     */
+    InstallationRegistry withHomes(Collection<File> homes) throws IOException {
+        List<RubyInstallation> rubies = new ArrayList<RubyInstallation>();
+        Set<File> added = new HashSet<File>();
+        for (File home : homes) {
+            String path = home.getCanonicalPath();
+            File exec = Util.getExecutable(path).getCanonicalFile();
+            if (getByExecutable(exec) == null && added.add(exec)) {
+                rubies.add(new RubyInstallation(home.getName(), path));
+            }
+        }
+        return with(rubies.toArray(new RubyInstallation[rubies.size()]));
+    }
+
+    /**
+     * A snapshot with the installations of this one and the given ones. A given installation
+     * replaces the ones of the same name, so merging the same installations again changes nothing
+     * and the latest ones win the lookups by name.
+     */
+    InstallationRegistry with(RubyInstallation[] others) {
+        Map<String, RubyInstallation> merged = new LinkedHashMap<String, RubyInstallation>();
+        for (RubyInstallation ruby : installations) {
+            merged.put(key(ruby), ruby);
+        }
+        Set<String> replaced = new HashSet<String>();
+        for (RubyInstallation ruby : others) {
+            if (replaced.add(ruby.getName())) {
+                for (Iterator<RubyInstallation> it = merged.values().iterator(); it.hasNext();) {
+                    if (ruby.getName().equals(it.next().getName())) {
+                        it.remove();
+                    }
+                }
+            }
+            merged.put(key(ruby), ruby);
+        }
+        return new InstallationRegistry(merged.values().toArray(new RubyInstallation[merged.size()]));
+    }
+
+    private static String key(RubyInstallation ruby) {
+        return ruby.getName() + File.pathSeparator + ruby.getPath();
+    }
+
+    /**
+     * Computes a snapshot from the current one. It may be called again if another snapshot was
+     * published meanwhile, so it must have no side effects.
+     */
+    interface Update {
+        InstallationRegistry apply(InstallationRegistry current);
+    }
+
+    /**
+     * Publishes the snapshot computed from the current one, computing it again until no other
+     * snapshot was published meanwhile, so concurrent updates never lose each other.
+     * @return The published snapshot.
+     */
+    static InstallationRegistry update(AtomicReference<InstallationRegistry> registry, Update update) {
+        InstallationRegistry current, updated;
+        do {
+            current = registry.get();
+            updated = update.apply(current);
+        } while (!registry.compareAndSet(current, updated));
+        return updated;
+    }
+
+    /**
+     * The same installations, sorted by name.
+     */
+    InstallationRegistry sorted() {
+        RubyInstallation[] rubies = installations.clone();
+        Arrays.sort(rubies);
+        return new InstallationRegistry(rubies);
+    }
+}
@@ -0,0 +1,163 @@
+package hudson.plugins.rake;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.Node;
+import hudson.remoting.Callable;
+import hudson.util.NullStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Faster JRuby boots through a class data sharing archive of the JRuby installation, kept on
+ * every node. The archive is keyed by the JRuby jar and the java executable the build's
+ * <code>JAVA_HOME</code> or <code>PATH</code> runs it with, so it's generated again when either is
+ * upgraded. Generating it needs a JDK with dynamic archives (13 or newer); once a JDK rejects them
+ * JRuby is launched as usual with it.
+ */
+final class JRubyStartup {
+
+    static final String CACHE_DIR = "rake-jruby-cds";
+
+    private static final String ARCHIVE_SUFFIX = ".jsa";
+    private static final String SAVED_SUFFIX = ".saved";
+    private static final String UNSUPPORTED_SUFFIX = ".unsupported";
+
+    private JRubyStartup() {
+    }
+
+    /**
+     * Points <code>JAVA_OPTS</code> at the archive of the installation, generating it first if needed,
+     * and adds the <code>--dev</code> profile to <code>JRUBY_OPTS</code> when asked to. The boot time
+     * the archive saves is measured once, when it's generated, and kept next to it.
+     */
+    static void prepare(Node node, Launcher launcher, RubyInstallation rake, boolean dev, Map<String, String> env,
+            FilePath workingDir, PrintStream logger) throws IOException, InterruptedException {
+        FilePath nodeRoot = node != null ? node.getRootPath() : null;
+        if (rake == null || nodeRoot == null) {
+            return;
+        }
+        String key = launcher.getChannel().call(new ArchiveKey(rake.getPath(), env.get("JAVA_HOME"), env.get("PATH")));
+        if (key == null) {
+            return;
+        }
+
+        if (dev) {
+            append(env, "JRUBY_OPTS", "--dev");
+        }
+
+        FilePath root = nodeRoot.child(CACHE_DIR);
+        FilePath archive = root.child(key + ARCHIVE_SUFFIX);
+        FilePath saved = root.child(key + SAVED_SUFFIX);
+        if (root.child(key + UNSUPPORTED_SUFFIX).exists()) {
+            return;
+        }
+
+        if (!archive.exists()) {
+            logger.println("Generating the class data sharing archive of " + rake.getName());
+            root.mkdirs();
+            FilePath tmp = root.child(key + ".tmp" + System.nanoTime());
+            String jruby = new File(rake.getPath(), "bin/jruby").getPath();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            long start = System.currentTimeMillis();
+            int r = boot(launcher, jruby, env, "-XX:ArchiveClassesAtExit=" + tmp.getRemote(), workingDir, out);
+            long cold = System.currentTimeMillis() - start;
+            if (r != 0 || !tmp.exists()) {
+                tmp.delete();
+                if (isRejected(out.toString())) {
+                    logger.println("This JDK can't generate class data sharing archives, JRuby boots as usual");
+                    root.child(key + UNSUPPORTED_SUFFIX).touch(System.currentTimeMillis());
+                } else {
+                    logger.println("Unable to generate the class data sharing archive of " + rake.getName()
+                        + " (exit code " + r + "), JRuby boots as usual");
+                }
+                return;
+            }
+            tmp.renameTo(archive);
+
+            // the archiving boot also writes the archive, so the saving is an upper estimate
+            start = System.currentTimeMillis();
+            r = boot(launcher, jruby, env, "-XX:SharedArchiveFile=" + archive.getRemote(), workingDir, new NullStream());
+            long warm = System.currentTimeMillis() - start;
+            if (r == 0) {
+                saved.write(String.valueOf(Math.max(0, cold - warm)), "UTF-8");
+            }
+        }
+
+        append(env, "JAVA_OPTS", "-XX:SharedArchiveFile=" + archive.getRemote() + " -Xshare:auto");
+        if (saved.exists()) {
+            logger.println("JRuby boots with the class data sharing archive " + archive.getRemote()
+                + ", saving up to about " + saved.readToString().trim() + " ms per boot (measured when it was generated)");
+        } else {
+            logger.println("JRuby boots with the class data sharing archive " + archive.getRemote());
+        }
+    }
+
+    private static int boot(Launcher launcher, String jruby, Map<String, String> env, String javaOpt,
+            FilePath workingDir, OutputStream out) throws IOException, InterruptedException {
+        Map<String, String> bootEnv = new HashMap<String, String>(env);
+        append(bootEnv, "JAVA_OPTS", javaOpt);
+        return launcher.launch().cmds(jruby, "-e", "1").envs(bootEnv).stdout(out).pwd(workingDir).join();
+    }
+
+    /**
+     * Whether the JVM refused to start because it doesn't know the dynamic archive option, rather
+     * than JRuby failing for another reason.
+     */
+    static boolean isRejected(String output) {
+        return output.contains("Unrecognized VM option 'ArchiveClassesAtExit")
+            || output.contains("-XX:ArchiveClassesAtExit is unsupported");
+    }
+
+    private static void append(Map<String, String> env, String name, String value) {
+        String current = env.get(name);
+        env.put(name, current != null && current.trim().length() > 0 ? current + " " + value : value);
+    }
+
+    /**
+     * Key of the archive of a JRuby installation, from its jar and the java executable that runs it,
+     * or <code>null</code> if the installation isn't a JRuby one.
+     */
+    private static final class ArchiveKey implements Callable<String, IOException> {
+        private final String rubyHome;
+        private final String javaHome;
+        private final String path;
+
+        ArchiveKey(String rubyHome, String javaHome, String path) {
+            this.rubyHome = rubyHome;
+            this.javaHome = javaHome;
+            this.path = path;
+        }
+
+        public String call() throws IOException {
+            File jar = new File(rubyHome, "lib/jruby.jar");
+            if (!Util.isJruby(rubyHome) || !jar.isFile()) {
+                return null;
+            }
+
+            File java = null;
+            String javaExec = Util.isWindows() ? "java.exe" : "java";
+            if (javaHome != null) {
+                java = new File(javaHome, "bin/" + javaExec);
+            }
+            if (java == null || !java.isFile()) {
+                String searched = path != null ? path : Util.getSystemPath();
+                java = new File(searched != null ? Util.findInPath(javaExec, searched, File.pathSeparator) : javaExec);
+            }
+            java = java.getCanonicalFile();
+
+            String stamp = jar.getCanonicalPath() + ":" + jar.length() + ":" + jar.lastModified()
+                + "|" + java.getPath() + ":" + java.length() + ":" + java.lastModified();
+            return BundleCache.sanitize(new File(rubyHome).getName()) + "-" + hudson.Util.getDigestOf(stamp);
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+}
@@ -0,0 +1,126 @@
+package hudson.plugins.rake;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.Callable;
+import hudson.remoting.VirtualChannel;
+import hudson.slaves.ComputerListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Ruby installations discovered on each agent. Discovery runs on the agent itself, so it sees
+ * the agent's PATH and home directory, and its result is cached until the agent reconnects.
+ * The installations of the master are the ones held by the {@link Rake.RakeDescriptor}.
+ */
+public final class NodeInstallations {
+
+    private static final Logger LOGGER = Logger.getLogger(NodeInstallations.class.getName());
+
+    private static final ConcurrentMap<String, FutureTask<RubyInstallation[]>> installations =
+        new ConcurrentHashMap<String, FutureTask<RubyInstallation[]>>();
+
+    private NodeInstallations() {
+    }
+
+    /**
+     * Gets the installations discovered on the given node, running the discovery
+     * on the node the first time it's requested. Concurrent callers share a single discovery:
+     * the ones arriving while it's in progress wait for it instead of starting their own.
+     */
+    static RubyInstallation[] get(Node node, final Rvm rvm) throws InterruptedException {
+        if (node == null || node == Hudson.getInstance()) {
+            return new RubyInstallation[0];
+        }
+
+        String nodeName = node.getNodeName();
+        FutureTask<RubyInstallation[]> discovery = installations.get(nodeName);
+        if (discovery == null) {
+            Computer computer = node.toComputer();
+            final VirtualChannel channel = computer != null ? computer.getChannel() : null;
+            if (channel == null) {
+                return new RubyInstallation[0];
+            }
+            FutureTask<RubyInstallation[]> created = new FutureTask<RubyInstallation[]>(
+                new java.util.concurrent.Callable<RubyInstallation[]>() {
+                    public RubyInstallation[] call() throws IOException, InterruptedException {
+                        return channel.call(new Discovery(rvm));
+                    }
+                });
+            discovery = installations.putIfAbsent(nodeName, created);
+            if (discovery == null) {
+                discovery = created;
+                created.run();
+            }
+        }
+
+        try {
+            return discovery.get();
+        } catch (ExecutionException e) {
+            // forget the failed discovery, so the next build tries again
+            installations.remove(nodeName, discovery);
+            LOGGER.log(Level.WARNING, "Unable to discover the ruby installations of " + nodeName, e.getCause());
+            return new RubyInstallation[0];
+        }
+    }
+
+    static void invalidate(String nodeName) {
+        installations.remove(nodeName);
+        ExecutableCache.invalidate(nodeName);
+    }
+
+    private static final class Discovery implements Callable<RubyInstallation[], IOException> {
+        private final Rvm rvm;
+
+        Discovery(Rvm rvm) {
+            this.rvm = rvm;
+        }
+
+        public RubyInstallation[] call() throws IOException {
+            Collection<RubyInstallation> rubies = new LinkedHashSet<RubyInstallation>(
+                Arrays.asList(Util.getCanonicalRubies(new RubyInstallation[0])));
+
+            Rvm nodeRvm = rvm != null && rvm.getPath() != null && new File(rvm.getPath()).exists() ?
+                rvm : RvmUtil.getDefaultRvm();
+            if (nodeRvm != null) {
+                rubies.addAll(Arrays.asList(RvmUtil.getRvmRubies(nodeRvm)));
+            }
+
+            RubyInstallation[] result = rubies.toArray(new RubyInstallation[rubies.size()]);
+            Arrays.sort(result);
+            return result;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Drops the cached installations of an agent when it connects or disconnects,
+     * so they are discovered again the next time a build runs there.
+     */
+    @Extension
+    public static final class Invalidator extends ComputerListener {
+        @Override
+        public void onOnline(Computer c, TaskListener listener) {
+            invalidate(c.getName());
+        }
+
+        @Override
+        public void onOffline(Computer c) {
+            invalidate(c.getName());
+        }
+    }
+}
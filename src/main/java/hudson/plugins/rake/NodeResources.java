@@ -0,0 +1,30 @@
+package hudson.plugins.rake;
+
+import hudson.Launcher;
+import hudson.remoting.Callable;
+
+import java.io.IOException;
+
+/**
+ * Hardware facts about the node a launcher runs processes on.
+ */
+final class NodeResources {
+
+    private NodeResources() {
+    }
+
+    /**
+     * Number of processors available on the node of the given launcher.
+     */
+    static int getCores(Launcher launcher) throws IOException, InterruptedException {
+        return launcher.getChannel().call(new Cores());
+    }
+
+    private static final class Cores implements Callable<Integer, IOException> {
+        public Integer call() {
+            return Runtime.getRuntime().availableProcessors();
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+}
@@ -0,0 +1,144 @@
+package hudson.plugins.rake;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.console.LineTransformationOutputStream;
+import hudson.util.ArgumentListBuilder;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Independent groups of rake tasks run as concurrent rake processes on the same node.
+ * Every line of output is prefixed with the group it comes from, and when a group fails
+ * the groups still running are killed.
+ */
+final class ParallelTaskGroups {
+
+    private static final long POLL_INTERVAL = 100;
+
+    private final List<String> groups;
+
+    ParallelTaskGroups(String taskGroups) {
+        this.groups = parse(taskGroups);
+    }
+
+    /**
+     * One group per non blank line, the tasks of a group separated by blanks.
+     */
+    static List<String> parse(String taskGroups) {
+        List<String> groups = new ArrayList<String>();
+        if (taskGroups != null) {
+            for (String line : taskGroups.split("[\r\n]+")) {
+                String group = line.replaceAll("[ \t]+", " ").trim();
+                if (group.length() > 0) {
+                    groups.add(group);
+                }
+            }
+        }
+        return groups;
+    }
+
+    boolean isEmpty() {
+        return groups.isEmpty();
+    }
+
+    /**
+     * Launches every group with the given base arguments and waits for all of them.
+     * @return <code>true</code> if all the groups succeeded.
+     */
+    boolean run(Launcher launcher, ArgumentListBuilder baseArgs, Map<String, String> env, FilePath workingDir,
+            PrintStream logger) throws IOException, InterruptedException {
+        List<Proc> procs = new ArrayList<Proc>();
+        List<PrefixedOutputStream> outputs = new ArrayList<PrefixedOutputStream>();
+        try {
+            for (String group : groups) {
+                ArgumentListBuilder args = baseArgs.clone();
+                args.addTokenized(group);
+                logger.println("Starting task group [" + group + "]");
+                PrefixedOutputStream output = new PrefixedOutputStream("[" + group + "] ", logger);
+                outputs.add(output);
+                procs.add(launcher.launch().cmds(args)
+                    .envs(env)
+                    .stdout(output)
+                    .pwd(workingDir).start());
+            }
+
+            boolean success = true;
+            List<Proc> running = new ArrayList<Proc>(procs);
+            while (!running.isEmpty() && success) {
+                for (int i = 0; i < running.size(); i++) {
+                    Proc proc = running.get(i);
+                    if (!proc.isAlive()) {
+                        int r = proc.join();
+                        outputs.get(procs.indexOf(proc)).close();
+                        String group = groups.get(procs.indexOf(proc));
+                        logger.println("Task group [" + group + "] finished with exit code " + r);
+                        running.remove(i--);
+                        if (r != 0) {
+                            success = false;
+                            break;
+                        }
+                    }
+                }
+                if (!running.isEmpty() && success) {
+                    Thread.sleep(POLL_INTERVAL);
+                }
+            }
+            return success;
+        } finally {
+            for (Proc proc : procs) {
+                if (proc.isAlive()) {
+                    proc.kill();
+                }
+            }
+            // prints the last line of the killed groups too, closing a finished group again is harmless
+            for (PrefixedOutputStream output : outputs) {
+                output.close();
+            }
+        }
+    }
+
+    /**
+     * Writes every line to the build log with a prefix, keeping lines of concurrent groups whole.
+     */
+    static final class PrefixedOutputStream extends LineTransformationOutputStream {
+        private final String prefix;
+        private final PrintStream out;
+
+        PrefixedOutputStream(String prefix, PrintStream out) {
+            this.prefix = prefix;
+            this.out = out;
+        }
+
+        @Override
+        protected void eol(byte[] b, int len) throws IOException {
+            synchronized (out) {
+                out.print(prefix);
+                out.write(b, 0, len);
+                // the last line of a process may not be terminated
+                if (len > 0 && b[len - 1] != '\n') {
+                    out.println();
+                }
+            }
+        }
+
+        @Override
+        public void flush() {
+            out.flush();
+        }
+
+        /**
+         * Prints the last line of the process even if it isn't terminated; the log is left open.
+         */
+        @Override
+        public void close() throws IOException {
+            super.close();
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,540 @@
+package hudson.plugins.rake;
+
+import hudson.Launcher;
+import hudson.remoting.Callable;
+import hudson.remoting.VirtualChannel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Samples the resources used by the processes rake starts, on Linux nodes. The processes are
+ * marked with an environment variable and sampled from <code>/proc</code> on the node itself at a
+ * fixed interval, along with their descendants, until the sampler is stopped; only the totals
+ * go back to the controller.
+ * <p>
+ * The CPU time of a process tree is the time of its root, which includes the time of every
+ * process of the tree that was waited for. A root exits between two samples, so ruby processes
+ * also load a script through <code>RUBYOPT</code> that reports their final times when they exit.
+ */
+final class ProcessSampler {
+
+    static final String MARKER = "RAKE_SAMPLER_ID";
+
+    private static final String REPORT_SCRIPT = "report.rb";
+
+    // writes /proc/self/stat next to the script when ruby exits, once every handler of rake has run
+    private static final String REPORT =
+        "dir = File.dirname(File.expand_path(__FILE__))\n"
+        + "at_exit do\n"
+        + "  begin\n"
+        + "    stat = File.read('/proc/self/stat')\n"
+        + "    tmp = File.join(dir, \"#{Process.pid}.tmp\")\n"
+        + "    File.open(tmp, 'w') { |f| f.write(stat) }\n"
+        + "    File.rename(tmp, File.join(dir, \"#{Process.pid}.stat\"))\n"
+        + "  rescue StandardError\n"
+        + "  end\n"
+        + "end\n";
+
+    /**
+     * Ids of the samplings asked to stop, shared by the samplings running on a node.
+     */
+    private static final Set<String> stopping = new HashSet<String>();
+
+    private final VirtualChannel channel;
+    private final String id;
+    private final Future<Usage> usage;
+
+    private ProcessSampler(VirtualChannel channel, String id, Future<Usage> usage) {
+        this.channel = channel;
+        this.id = id;
+        this.usage = usage;
+    }
+
+    /**
+     * Starts sampling the processes launched with the given environment from now on.
+     * @return <code>null</code> if the node of the launcher isn't a Linux one.
+     */
+    static ProcessSampler start(Launcher launcher, Map<String, String> env, int intervalSeconds)
+            throws IOException, InterruptedException {
+        VirtualChannel channel = launcher.getChannel();
+        String reports = channel.call(new Prepare());
+        if (reports == null) {
+            return null;
+        }
+        String id = UUID.randomUUID().toString();
+        env.put(MARKER, id);
+        String script = new File(reports, REPORT_SCRIPT).getPath();
+        // RUBYOPT is split on spaces, ruby processes are only sampled then
+        if (!script.contains(" ")) {
+            String rubyOpt = env.get("RUBYOPT");
+            env.put("RUBYOPT", (rubyOpt != null && rubyOpt.trim().length() > 0 ? rubyOpt + " " : "") + "-r" + script);
+        }
+        return new ProcessSampler(channel, id,
+            channel.callAsync(new Sampling(id, reports, Math.max(1, intervalSeconds) * 1000L)));
+    }
+
+    /**
+     * Marks the processes launched with another environment as well, if the first one is marked.
+     */
+    static void mark(Map<String, String> marked, Map<String, String> env) {
+        if (marked.containsKey(MARKER)) {
+            env.put(MARKER, marked.get(MARKER));
+            if (marked.containsKey("RUBYOPT")) {
+                env.put("RUBYOPT", marked.get("RUBYOPT"));
+            }
+        }
+    }
+
+    /**
+     * Stops sampling.
+     * @return The resources used by the processes since the sampler was started.
+     */
+    Usage stop() throws IOException, InterruptedException {
+        channel.call(new Stop(id));
+        try {
+            return usage.get();
+        } catch (ExecutionException e) {
+            IOException ioe = new IOException("Unable to sample the rake processes");
+            ioe.initCause(e.getCause());
+            throw ioe;
+        }
+    }
+
+    /**
+     * The resources used by a set of processes.
+     */
+    static final class Usage implements Serializable {
+        private final long peakRssBytes;
+        private final long cpuMillis;
+        private final long readBytes;
+        private final long writeBytes;
+        private final int samples;
+
+        Usage(long peakRssBytes, long cpuMillis, long readBytes, long writeBytes, int samples) {
+            this.peakRssBytes = peakRssBytes;
+            this.cpuMillis = cpuMillis;
+            this.readBytes = readBytes;
+            this.writeBytes = writeBytes;
+            this.samples = samples;
+        }
+
+        /**
+         * The largest resident memory of all the processes together in one sample.
+         */
+        long getPeakRssBytes() {
+            return peakRssBytes;
+        }
+
+        long getCpuMillis() {
+            return cpuMillis;
+        }
+
+        /**
+         * The bytes the processes read from storage.
+         */
+        long getReadBytes() {
+            return readBytes;
+        }
+
+        /**
+         * The bytes the processes wrote to storage.
+         */
+        long getWriteBytes() {
+            return writeBytes;
+        }
+
+        int getSamples() {
+            return samples;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Follows the marked processes across samples of a <code>/proc</code> directory, and the final
+     * times the ruby processes report in a directory of their own.
+     */
+    static final class Tracker {
+        // the clock tick of the CPU times in /proc, USER_HZ is 100 on every Linux architecture Jenkins runs on
+        private static final long TICKS_PER_SECOND = 100;
+
+        private final String marker;
+        private final File reports;
+        private final Map<String, Boolean> marked = new HashMap<String, Boolean>();
+        private final Map<String, long[]> io = new HashMap<String, long[]>();
+        // the last known times of every process of the trees, and the tree parent of each, null for roots
+        private final Map<String, Stat> times = new HashMap<String, Stat>();
+        private final Map<String, String> parents = new HashMap<String, String>();
+        private final Set<String> reported = new HashSet<String>();
+        private long peakRssBytes;
+        private int samples;
+
+        Tracker(String id, File reports) {
+            this.marker = MARKER + "=" + id;
+            this.reports = reports;
+        }
+
+        void sample(File proc) {
+            String[] names = proc.list();
+            if (names == null) {
+                return;
+            }
+            Map<String, Stat> stats = new HashMap<String, Stat>();
+            for (String name : names) {
+                if (name.matches("\\d+")) {
+                    Stat stat = Stat.read(new File(proc, name));
+                    if (stat != null) {
+                        stats.put(name, stat);
+                    }
+                }
+            }
+            marked.keySet().retainAll(keys(stats.values()));
+
+            // descendants are sampled too, even if they cleared their environment
+            Map<String, Stat> sampled = new HashMap<String, Stat>();
+            for (Stat stat : stats.values()) {
+                for (Stat s = stat; s != null; s = stats.get(s.ppid)) {
+                    if (isMarked(s)) {
+                        sampled.put(stat.pid, stat);
+                        break;
+                    }
+                }
+            }
+
+            long rssBytes = 0;
+            for (Stat stat : sampled.values()) {
+                rssBytes += stat.getRssBytes();
+                long[] bytes = stat.getIoBytes();
+                if (bytes != null) {
+                    io.put(stat.key, bytes);
+                }
+                if (!reported.contains(stat.key)) {
+                    times.put(stat.key, stat);
+                }
+                // orphans are adopted out of the tree, they become roots
+                Stat parent = sampled.get(stat.ppid);
+                parents.put(stat.key, parent != null ? parent.key : null);
+            }
+            peakRssBytes = Math.max(peakRssBytes, rssBytes);
+            readReports(sampled);
+            samples++;
+        }
+
+        private void readReports(Map<String, Stat> sampled) {
+            String[] names = reports != null ? reports.list() : null;
+            if (names == null) {
+                return;
+            }
+            for (String name : names) {
+                if (!name.endsWith(".stat")) {
+                    continue;
+                }
+                File report = new File(reports, name);
+                byte[] content = read(report);
+                report.delete();
+                Stat stat = content != null ? Stat.parse(name.substring(0, name.length() - ".stat".length()), null,
+                    new String(content)) : null;
+                // only the processes of the trees have the script, even those too quick to be sampled
+                if (stat == null) {
+                    continue;
+                }
+                times.put(stat.key, stat);
+                reported.add(stat.key);
+                if (!parents.containsKey(stat.key)) {
+                    parents.put(stat.key, parentKey(stat.ppid, sampled));
+                }
+            }
+        }
+
+        /**
+         * The key of the process of the trees with the given pid, the live one first.
+         */
+        private String parentKey(String pid, Map<String, Stat> sampled) {
+            Stat live = sampled.get(pid);
+            if (live != null) {
+                return live.key;
+            }
+            for (String key : times.keySet()) {
+                if (key.startsWith(pid + ":")) {
+                    return key;
+                }
+            }
+            return null;
+        }
+
+        Usage getUsage() {
+            long readBytes = 0;
+            long writeBytes = 0;
+            for (long[] bytes : io.values()) {
+                readBytes += bytes[0];
+                writeBytes += bytes[1];
+            }
+
+            Map<String, List<String>> children = new HashMap<String, List<String>>();
+            List<String> roots = new ArrayList<String>();
+            for (Map.Entry<String, String> parent : parents.entrySet()) {
+                if (parent.getValue() == null || !times.containsKey(parent.getValue())) {
+                    roots.add(parent.getKey());
+                } else {
+                    List<String> siblings = children.get(parent.getValue());
+                    if (siblings == null) {
+                        siblings = new ArrayList<String>();
+                        children.put(parent.getValue(), siblings);
+                    }
+                    siblings.add(parent.getKey());
+                }
+            }
+            long cpuTicks = 0;
+            for (String root : roots) {
+                cpuTicks += getTicks(root, children);
+            }
+            return new Usage(peakRssBytes, cpuTicks * 1000 / TICKS_PER_SECOND, readBytes, writeBytes, samples);
+        }
+
+        /**
+         * The CPU time of a process and its descendants. A process reports its final time, with the
+         * children it waited for; the last sample of a process that didn't may have been taken before
+         * it waited for its children, whose own last times are used then.
+         */
+        private long getTicks(String key, Map<String, List<String>> children) {
+            Stat stat = times.get(key);
+            long own = stat.utime + stat.stime;
+            long waited = stat.cutime + stat.cstime;
+            if (reported.contains(key) || !children.containsKey(key)) {
+                return own + waited;
+            }
+            long descendants = 0;
+            for (String child : children.get(key)) {
+                descendants += getTicks(child, children);
+            }
+            return own + Math.max(waited, descendants);
+        }
+
+        private boolean isMarked(Stat stat) {
+            Boolean m = marked.get(stat.key);
+            if (m == null) {
+                byte[] environ = read(new File(stat.dir, "environ"));
+                m = environ != null && ("\0" + new String(environ) + "\0").contains("\0" + marker + "\0");
+                marked.put(stat.key, m);
+            }
+            return m;
+        }
+
+        private static Set<String> keys(Iterable<Stat> stats) {
+            Set<String> keys = new HashSet<String>();
+            for (Stat stat : stats) {
+                keys.add(stat.key);
+            }
+            return keys;
+        }
+    }
+
+    /**
+     * The fields of <code>/proc/[pid]/stat</code> the sampler uses.
+     */
+    private static final class Stat {
+        private final String pid;
+        private final File dir;
+        private final String key;
+        private final String ppid;
+        private final long utime;
+        private final long stime;
+        private final long cutime;
+        private final long cstime;
+
+        private Stat(String pid, File dir, String[] fields) {
+            this.pid = pid;
+            this.dir = dir;
+            // pids are reused, the start time tells processes with the same pid apart
+            this.key = pid + ":" + fields[19];
+            this.ppid = fields[1];
+            this.utime = Long.parseLong(fields[11]);
+            this.stime = Long.parseLong(fields[12]);
+            this.cutime = Long.parseLong(fields[13]);
+            this.cstime = Long.parseLong(fields[14]);
+        }
+
+        /**
+         * @return <code>null</code> if the process is gone.
+         */
+        static Stat read(File dir) {
+            byte[] stat = ProcessSampler.read(new File(dir, "stat"));
+            return stat != null ? parse(dir.getName(), dir, new String(stat)) : null;
+        }
+
+        static Stat parse(String pid, File dir, String line) {
+            // the command name is between parentheses and may contain spaces
+            int end = line.lastIndexOf(')');
+            if (end < 0) {
+                return null;
+            }
+            String[] fields = line.substring(end + 1).trim().split("\\s+");
+            if (fields.length < 20) {
+                return null;
+            }
+            try {
+                return new Stat(pid, dir, fields);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        long getRssBytes() {
+            byte[] status = ProcessSampler.read(new File(dir, "status"));
+            if (status != null) {
+                for (String line : new String(status).split("\n")) {
+                    if (line.startsWith("VmRSS:")) {
+                        return parseLong(line.substring("VmRSS:".length()).replace("kB", "")) * 1024;
+                    }
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * @return The bytes read and written, <code>null</code> if they can't be read.
+         */
+        long[] getIoBytes() {
+            byte[] io = ProcessSampler.read(new File(dir, "io"));
+            if (io == null) {
+                return null;
+            }
+            long[] bytes = new long[2];
+            for (String line : new String(io).split("\n")) {
+                if (line.startsWith("read_bytes:")) {
+                    bytes[0] = parseLong(line.substring("read_bytes:".length()));
+                } else if (line.startsWith("write_bytes:")) {
+                    bytes[1] = parseLong(line.substring("write_bytes:".length()));
+                }
+            }
+            return bytes;
+        }
+
+        private static long parseLong(String value) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * The content of a file of <code>/proc</code>, <code>null</code> if the process is gone or the file
+     * can't be read. Their size is unknown until they are read.
+     */
+    private static byte[] read(File file) {
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buf = new byte[4096];
+                int len;
+                while ((len = in.read(buf)) >= 0) {
+                    out.write(buf, 0, len);
+                }
+                return out.toByteArray();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Creates the directory the ruby processes report their final times in.
+     * @return <code>null</code> if the node has no <code>/proc</code>.
+     */
+    private static final class Prepare implements Callable<String, IOException> {
+        public String call() throws IOException {
+            if (!new File("/proc/self/stat").isFile()) {
+                return null;
+            }
+            File reports = File.createTempFile("rake-sampler", "");
+            reports.delete();
+            reports.mkdirs();
+            OutputStream out = new FileOutputStream(new File(reports, REPORT_SCRIPT));
+            try {
+                out.write(REPORT.getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+            return reports.getPath();
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Samples <code>/proc</code> on the node until asked to stop.
+     */
+    private static final class Sampling implements Callable<Usage, IOException> {
+        private final String id;
+        private final String reports;
+        private final long intervalMillis;
+
+        Sampling(String id, String reports, long intervalMillis) {
+            this.id = id;
+            this.reports = reports;
+            this.intervalMillis = intervalMillis;
+        }
+
+        public Usage call() throws IOException {
+            Tracker tracker = new Tracker(id, new File(reports));
+            File proc = new File("/proc");
+            try {
+                while (true) {
+                    tracker.sample(proc);
+                    synchronized (stopping) {
+                        if (stopping.remove(id)) {
+                            return tracker.getUsage();
+                        }
+                        stopping.wait(intervalMillis);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return tracker.getUsage();
+            } finally {
+                hudson.Util.deleteRecursive(new File(reports));
+            }
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final class Stop implements Callable<Void, IOException> {
+        private final String id;
+
+        Stop(String id) {
+            this.id = id;
+        }
+
+        public Void call() {
+            synchronized (stopping) {
+                stopping.add(id);
+                stopping.notifyAll();
+            }
+            return null;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+}
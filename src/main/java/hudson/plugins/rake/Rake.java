@@ -1,8 +1,7 @@
 package hudson.plugins.rake;
 
-import static hudson.plugins.rake.Util.findInPath;
-import static hudson.plugins.rake.Util.getCanonicalRubies;
 import static hudson.plugins.rake.Util.getGemsDir;
+import static hudson.plugins.rake.Util.getSystemPath;
 import static hudson.plugins.rake.Util.hasGemsInstalled;
 import static hudson.plugins.rake.Util.isRakeInstalled;
 import hudson.CopyOnWrite;
@@ -11,10 +10,13 @@ import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
 import hudson.Util;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
 import hudson.model.BuildListener;
 import hudson.model.Descriptor;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
+import hudson.model.Computer;
 import hudson.model.Hudson;
 import hudson.model.Node;
 import hudson.tasks.Builder;
@@ -22,10 +24,22 @@ import hudson.util.ArgumentListBuilder;
 import hudson.util.FormValidation;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.LinkedHashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import net.sf.json.JSONObject;
 
@@ -42,6 +56,12 @@ import org.kohsuke.stapler.StaplerRequest;
 @SuppressWarnings({"unchecked", "serial"})
 public class Rake extends Builder {
 
+    private static final Logger LOGGER = Logger.getLogger(Rake.class.getName());
+
+    private static final long CONSOLE_HEAD_BYTES = 1024 * 1024;
+    private static final int CONSOLE_TAIL_BYTES = 256 * 1024;
+    private static final long CONSOLE_NOTICE_MILLIS = 30 * 1000;
+
     @Extension
     public static final RakeDescriptor DESCRIPTOR = new RakeDescriptor();
     private final String rakeInstallation;
@@ -51,9 +71,29 @@ public class Rake extends Builder {
     private final String tasks;
     private final boolean silent;
     private final boolean bundleExec;
+    private final boolean warmWorkers;
+    private final String taskGroups;
+    private final boolean scheduleTasks;
+    private final boolean recordTimings;
+    private final boolean bundleCache;
+    private final String inputs;
+    private final String cacheableTasks;
+    private final boolean launchOnLastBuiltNode;
+    private final boolean parallelJobs;
+    private final boolean multitask;
+    private final String rubies;
+    private final int maxConcurrentRubies;
+    private final boolean jrubyStartup;
+    private final boolean jrubyDev;
+    private final boolean boundedConsole;
+    private final int resourceSampleInterval;
 
     @DataBoundConstructor
-    public Rake(String rakeInstallation, String rakeFile, String tasks, String rakeLibDir, String rakeWorkingDir, boolean silent, boolean bundleExec) {
+    public Rake(String rakeInstallation, String rakeFile, String tasks, String rakeLibDir, String rakeWorkingDir, boolean silent, boolean bundleExec,
+            boolean warmWorkers, String taskGroups, boolean scheduleTasks, boolean recordTimings,
+            boolean bundleCache, String inputs, String cacheableTasks, boolean launchOnLastBuiltNode,
+            boolean parallelJobs, boolean multitask, String rubies, int maxConcurrentRubies,
+            boolean jrubyStartup, boolean jrubyDev, boolean boundedConsole, int resourceSampleInterval) {
         this.rakeInstallation = rakeInstallation;
         this.rakeFile = rakeFile;
         this.tasks = tasks;
@@ -61,22 +101,49 @@ public class Rake extends Builder {
         this.rakeWorkingDir = rakeWorkingDir;
         this.silent = silent;
         this.bundleExec = bundleExec;
+        this.warmWorkers = warmWorkers;
+        this.taskGroups = taskGroups;
+        this.scheduleTasks = scheduleTasks;
+        this.recordTimings = recordTimings;
+        this.bundleCache = bundleCache;
+        this.inputs = inputs;
+        this.cacheableTasks = cacheableTasks;
+        this.launchOnLastBuiltNode = launchOnLastBuiltNode;
+        this.parallelJobs = parallelJobs;
+        this.multitask = multitask;
+        this.rubies = rubies;
+        this.maxConcurrentRubies = maxConcurrentRubies;
+        this.jrubyStartup = jrubyStartup;
+        this.jrubyDev = jrubyDev;
+        this.boundedConsole = boundedConsole;
+        this.resourceSampleInterval = resourceSampleInterval;
     }
 
-    private RubyInstallation getRake() {
-        for (RubyInstallation rake : getDescriptor().getInstallations()) {
-            if (rakeInstallation != null && rake.getName().equals(rakeInstallation)) {
+    private RubyInstallation getRake(Node node, String name) throws InterruptedException {
+        if (name == null) {
+            return null;
+        }
+        // installations discovered on the node itself take precedence over the global ones
+        for (RubyInstallation rake : NodeInstallations.get(node, getDescriptor().getRvm())) {
+            if (rake.getName().equals(name)) {
                 return rake;
             }
         }
-        return null;
+        return getDescriptor().getInstallation(name);
     }
 
-    private Launcher getLastBuiltLauncher(AbstractBuild build, Launcher launcher, BuildListener listener) {
+    /**
+     * The launcher rake runs with: the one of the executor running the build, where the workspace
+     * is, unless the step is set to launch on the node the project was last built on.
+     */
+    private Launcher getRakeLauncher(AbstractBuild build, Launcher launcher, BuildListener listener) {
+        if (!launchOnLastBuiltNode) {
+            return launcher;
+        }
         AbstractProject project = build.getProject();
         Node lastBuiltOn = project.getLastBuiltOn();
         Launcher lastBuiltLauncher = launcher;
-        if (lastBuiltOn != null) {
+        if (lastBuiltOn != null && lastBuiltOn != build.getBuiltOn()) {
             lastBuiltLauncher = lastBuiltOn.createLauncher(listener);
         }
 
@@ -88,33 +155,43 @@ public class Rake extends Builder {
         ArgumentListBuilder args = new ArgumentListBuilder();
         String normalizedTasks = tasks.replaceAll("[    \r\n]+"," ");
 
-        Launcher lastBuiltLauncher = getLastBuiltLauncher(build, launcher, listener);
+        long setupStart = System.currentTimeMillis();
+        Launcher rakeLauncher = getRakeLauncher(build, launcher, listener);
+        long launcherMillis = System.currentTimeMillis() - setupStart;
 
-        final String pathSeparator = lastBuiltLauncher.isUnix()? ":" : ";";
-        RubyInstallation rake = getRake();
+        final String pathSeparator = rakeLauncher.isUnix()? ":" : ";";
+        Node node = build.getBuiltOn();
+        RubyInstallation rake = getRake(node, rakeInstallation);
 
         // If the ruby installation is not found, try to load the ruby installations again and
         // check again. This enables the ability for gemsets to be recoginised which are created
-        // on the fly using the rvm plugin.
-        if (rake == null) {
+        // on the fly using the rvm plugin. Concurrent builds share a single scan.
+        if (rake == null && rakeInstallation != null) {
+          if (node != null) {
+              NodeInstallations.invalidate(node.getNodeName());
+          }
           getDescriptor().loadInstallations();
-          rake = getRake();
+          rake = getRake(node, rakeInstallation);
         }
 
         if (rake != null) {
-            File exec;
-            if (bundleExec) {
-                exec = rake.getBundleExecutable();
-            } else {
-                exec = rake.getExecutable();
-            }
-            if(!exec.exists()) {
-                listener.fatalError(exec + " doesn't exist");
+            // the executable is resolved on the node that runs rake, where its paths exist
+            try {
+                String exec = ExecutableCache.getExecutable(getNodeName(node), rakeLauncher.getChannel(),
+                    rake, bundleExec);
+                if (exec == null) {
+                    listener.fatalError("The " + (bundleExec ? "bundle" : "rake") + " executable of "
+                        + rake.getName() + " doesn't exist");
+                    return false;
+                }
+                args.add(exec);
+            } catch (IOException e) {
+                Util.displayIOException(e,listener);
+                e.printStackTrace(listener.fatalError("unable to resolve the rake executable"));
                 return false;
             }
-            args.add(exec.getPath());
         } else {
-            String fileExtension = lastBuiltLauncher.isUnix()?"":".bat";
+            String fileExtension = rakeLauncher.isUnix()?"":".bat";
             String executable = bundleExec?"bundle":"rake";
             executable += fileExtension;
             // search PATH to build an absolute path to the executable,
@@ -129,7 +206,7 @@ public class Rake extends Builder {
                 // no big deal; ignore and we'll skip the PATH scan below
             }
             if (path != null) {
-                executable = findInPath(executable, path, pathSeparator);
+                executable = ExecutableCache.findInPath(getNodeName(node), executable, path, pathSeparator);
             }
             args.add(executable);
         }
@@ -137,14 +214,15 @@ public class Rake extends Builder {
         if (bundleExec) {
             args.add("exec", "rake");
         }
-        if (rakeFile != null && rakeFile.length() > 0) {
-            args.add("--rakefile", rakeFile);
-        }
-        if (rakeLibDir != null && rakeLibDir.length() > 0) {
-            args.add("--libdir", rakeLibDir);
-        }
-        if (silent) {
-            args.add("--silent");
+        int rakeArgsStart = args.toList().size();
+        addRakeOptions(args);
+        if (parallelJobs) {
+            try {
+                int jobs = RakeNodeProperty.getJobs(node, NodeResources.getCores(rakeLauncher));
+                args.add("--jobs", String.valueOf(jobs));
+            } catch (IOException e) {
+                e.printStackTrace(listener.error("Unable to count the cores of the node, rake picks the number of jobs"));
+            }
         }
 
         FilePath workingDir = build.getModuleRoot();
@@ -153,34 +231,189 @@ public class Rake extends Builder {
             workingDir = new FilePath(build.getModuleRoot(), rakeWorkingDir);
         }
 
+        ParallelTaskGroups groups = new ParallelTaskGroups(taskGroups);
+        ArgumentListBuilder baseArgs = args.clone();
         args.addTokenized(normalizedTasks);
+        long setupMillis = System.currentTimeMillis() - setupStart;
 
         try {
             EnvVars env = build.getEnvironment(listener);
-            if (rake != null) {
-                if (rake.getGemHome() != null) {
-                    env.put("GEM_HOME", rake.getGemHome());
+            addRubyEnvironment(env, rake, pathSeparator);
+
+            PrintStream logger = listener.getLogger();
+            String fingerprint = null;
+            if (inputs != null && inputs.trim().length() > 0) {
+                fingerprint = workingDir.act(new InputFingerprint(inputs));
+                if (fingerprint.equals(getLastFingerprint(build))) {
+                    logger.println("Inputs unchanged since the last successful build, rake is up-to-date");
+                    recordFingerprint(build, fingerprint);
+                    return true;
                 }
-                if (rake.getGemPath() != null) {
-                    env.put("GEM_PATH", rake.getGemPath());
+            }
+
+            long prepareStart = System.currentTimeMillis();
+            TaskTimingOutputStream timingOut = null;
+            if (recordTimings) {
+                RakeTimingAction timings = build.getAction(RakeTimingAction.class);
+                if (timings == null) {
+                    timings = new RakeTimingAction();
+                    build.addAction(timings);
                 }
-                if (rake.getBinPath() != null) {
-                    StringBuilder builder = new StringBuilder();
-                    String path = env.get("PATH");
-                    if (path != null) {
-                        builder.append(path).append(pathSeparator);
+                timingOut = new TaskTimingOutputStream(logger, timings);
+                logger = new PrintStream(timingOut, true);
+            }
+
+            try {
+                if (!prepareRuby(node, rakeLauncher, rake, args.toList().get(0), env, workingDir, logger)) {
+                    listener.fatalError("bundle install failed");
+                    return false;
+                }
+
+                // tasks whose outputs are in the task cache are restored instead of run
+                Map<TaskOutputCache.CacheableTask, String> uncachedOutputs =
+                    new LinkedHashMap<TaskOutputCache.CacheableTask, String>();
+                boolean restoredAll = false;
+                TaskOutputCache outputCache = getDescriptor().getTaskOutputCache();
+                if (outputCache.isEnabled() && normalizedTasks.trim().length() > 0) {
+                    String rubyIdentity = rake != null ? rake.getName() + "@" + rake.getPath() : "PATH";
+                    List<String> remaining = new ArrayList<String>(Arrays.asList(normalizedTasks.trim().split(" ")));
+                    for (TaskOutputCache.CacheableTask task : TaskOutputCache.parse(cacheableTasks)) {
+                        if (!remaining.contains(task.getName())) {
+                            continue;
+                        }
+                        TaskOutputCache.Restoration restoration = outputCache.restore(workingDir, task, rubyIdentity);
+                        if (restoration.isRestored()) {
+                            logger.println("Restored the outputs of " + task.getName() + " from the task cache");
+                            remaining.remove(task.getName());
+                        } else {
+                            if (restoration.getFailure() != null) {
+                                logger.println("Unable to restore the outputs of " + task.getName()
+                                    + " from the task cache, running it: " + restoration.getFailure());
+                            }
+                            uncachedOutputs.put(task, restoration.getKey());
+                        }
                     }
+                    normalizedTasks = StringUtils.join(remaining, " ");
+                    restoredAll = remaining.isEmpty();
+                    args = baseArgs.clone();
+                    args.addTokenized(normalizedTasks);
+                }
 
-                    builder.append(rake.getBinPath());
-                    env.put("PATH", builder.toString());
+                long prepareMillis = System.currentTimeMillis() - prepareStart;
+                RakeLaunchAction.record(build, launchOnLastBuiltNode ? "last built node" : "executor node",
+                    launcherMillis, setupMillis, prepareMillis);
+                logger.println("Rake launch setup took " + setupMillis + " ms (launcher " + launcherMillis
+                    + " ms), preparing the workspace " + prepareMillis + " ms");
+
+                ProcessSampler sampler = null;
+                if (resourceSampleInterval > 0) {
+                    sampler = ProcessSampler.start(rakeLauncher, env, resourceSampleInterval);
+                    if (sampler == null) {
+                        logger.println("Resource sampling needs a Linux node, rake runs without it");
+                    }
                 }
-            }
 
-            int r = lastBuiltLauncher.launch().cmds(args)
-                .envs(env)
-                .stdout(listener)
-                .pwd(workingDir).join();
-            return r == 0;
+                boolean success = true;
+                try {
+                    RubyFanOut fanOut = null;
+                    if (!RubyFanOut.parse(rubies).isEmpty()) {
+                        fanOut = getFanOut(build, node, rakeLauncher, listener, rake, args.toList(), env, workingDir,
+                            pathSeparator, logger);
+                        if (fanOut == null) {
+                            return false;
+                        }
+                    }
+
+                    // the tasks run first, then the independent task groups run concurrently
+                    if (!restoredAll && (groups.isEmpty() || normalizedTasks.trim().length() > 0)) {
+                        List<String> modes = getLaunchModes(fanOut != null);
+                        if (modes.size() > 1) {
+                            logger.println("Warning: rake runs with " + modes.get(0) + "; "
+                                + StringUtils.join(modes.subList(1, modes.size()), ", ")
+                                + (fanOut != null ? " are ignored" : " only apply if it can't run on this node"));
+                        }
+                        Integer r = null;
+                        if (fanOut != null) {
+                            int cap = maxConcurrentRubies > 0 ? maxConcurrentRubies : NodeResources.getCores(rakeLauncher);
+                            r = fanOut.run(rakeLauncher, cap, logger) ? 0 : 1;
+                        }
+                        if (r == null && scheduleTasks && normalizedTasks.trim().length() > 0) {
+                            r = TaskScheduler.run(rakeLauncher, baseArgs,
+                                Arrays.asList(normalizedTasks.trim().split(" ")), rakeFile, rakeLibDir, env,
+                                workingDir, logger);
+                        }
+                        if (r == null && warmWorkers) {
+                            List<String> rakeArgs = args.toList();
+                            r = WarmWorkerPool.run(rakeLauncher, rake, bundleExec,
+                                rakeArgs.subList(rakeArgsStart, rakeArgs.size()), env, workingDir,
+                                getDescriptor().getWarmWorkers(), logger);
+                            if (r == null) {
+                                logger.println("No warm rake worker available, launching rake directly");
+                            }
+                        }
+                        if (r == null && boundedConsole) {
+                            File archive = getOutputArchive(build);
+                            BoundedConsole console = new BoundedConsole(logger, new FileOutputStream(archive),
+                                CONSOLE_HEAD_BYTES, CONSOLE_TAIL_BYTES, CONSOLE_NOTICE_MILLIS);
+                            try {
+                                r = rakeLauncher.launch().cmds(args)
+                                    .envs(env)
+                                    .stdout(console)
+                                    .pwd(workingDir).join();
+                            } finally {
+                                console.close();
+                            }
+                            logger.println("The full rake output is archived as " + archive.getName());
+                        }
+                        if (r == null) {
+                            r = rakeLauncher.launch().cmds(args)
+                                .envs(env)
+                                .stdout(logger)
+                                .pwd(workingDir).join();
+                        }
+                        success = r == 0;
+                    }
+                    if (success) {
+                        for (Map.Entry<TaskOutputCache.CacheableTask, String> uncached : uncachedOutputs.entrySet()) {
+                            try {
+                                if (!outputCache.store(workingDir, uncached.getKey(), uncached.getValue())) {
+                                    logger.println("Task " + uncached.getKey().getName()
+                                        + " produced none of its declared outputs, they are not cached");
+                                }
+                            } catch (IOException e) {
+                                e.printStackTrace(listener.error("Unable to store the outputs of " + uncached.getKey().getName()));
+                            }
+                        }
+                    }
+                    if (success && !groups.isEmpty()) {
+                        success = groups.run(rakeLauncher, baseArgs, env, workingDir, logger);
+                    }
+                } finally {
+                    // a failure to sample mustn't hide the outcome of rake
+                    if (sampler != null) {
+                        try {
+                            ProcessSampler.Usage usage = sampler.stop();
+                            RakeResourceAction.record(build, usage);
+                            logger.println("Rake used " + usage.getCpuMillis() / 1000 + " s of CPU and at most "
+                                + usage.getPeakRssBytes() / (1024 * 1024) + " MB of memory");
+                        } catch (IOException e) {
+                            logger.println("Unable to sample the resources used by rake: " + e);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            logger.println("Interrupted while sampling the resources used by rake");
+                        }
+                    }
+                }
+                if (success && fingerprint != null) {
+                    recordFingerprint(build, fingerprint);
+                }
+                return success;
+            } finally {
+                // flushes the timing of the last task, also when rake didn't run to the end
+                if (timingOut != null) {
+                    timingOut.close();
+                }
+            }
         } catch (IOException e) {
             Util.displayIOException(e,listener);
             e.printStackTrace(listener.fatalError("rake execution failed"));
@@ -188,6 +421,203 @@ public class Rake extends Builder {
         }
     }
 
+    /**
+     * The ways of launching rake this step enables, in the order they're tried: each one only
+     * applies when the ones before it can't run, and none of them after running several rubies.
+     */
+    private List<String> getLaunchModes(boolean fanOut) {
+        List<String> modes = new ArrayList<String>();
+        if (fanOut) {
+            modes.add("several rubies");
+        }
+        if (scheduleTasks) {
+            modes.add("scheduled tasks");
+        }
+        if (warmWorkers) {
+            modes.add("warm workers");
+        }
+        if (boundedConsole) {
+            modes.add("the bounded console");
+        }
+        return modes;
+    }
+
+    /**
+     * Discovers the ruby installations once the jobs are loaded, off the startup path.
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void discoverInstallations() {
+        Computer.threadPoolForRemoting.submit(new Runnable() {
+            public void run() {
+                DESCRIPTOR.loadInstallations();
+            }
+        });
+    }
+
+    /**
+     * Prepares a ruby of this step in its working directory once its installation is in the
+     * environment: restores or installs its bundle and sets up its JRuby boot.
+     * @param exec The rake or bundle executable of the ruby.
+     * @return <code>false</code> if the bundle couldn't be installed.
+     */
+    private boolean prepareRuby(Node node, Launcher rakeLauncher, RubyInstallation ruby, String exec,
+            Map<String, String> env, FilePath workingDir, PrintStream logger) throws IOException, InterruptedException {
+        if (bundleExec && bundleCache
+                && !getDescriptor().getBundleCache().prepare(node, rakeLauncher, ruby, exec, env, workingDir, logger)) {
+            return false;
+        }
+        if (jrubyStartup) {
+            JRubyStartup.prepare(node, rakeLauncher, ruby, jrubyDev, env, workingDir, logger);
+        }
+        return true;
+    }
+
+    /**
+     * Sets up the run of the tasks with the installation of this step and the additional rubies.
+     * Every additional ruby gets its own copy of the workspace, prepared like the one of the first
+     * ruby with the executable, the environment and the bundle of its own installation; the rake
+     * arguments, <code>--jobs</code> included, are the same for all of them.
+     * @return <code>null</code> if one of the rubies can't be used.
+     */
+    private RubyFanOut getFanOut(AbstractBuild<?,?> build, Node node, Launcher rakeLauncher, BuildListener listener,
+            RubyInstallation rake, List<String> args, EnvVars env, FilePath workingDir, String pathSeparator,
+            PrintStream logger) throws IOException, InterruptedException {
+        RubyFanOut fanOut = new RubyFanOut();
+        fanOut.add(rake != null ? rake.getName() : "(Default)", args, env, workingDir);
+
+        boolean ready = false;
+        try {
+            for (String name : RubyFanOut.parse(rubies)) {
+                RubyInstallation ruby = getRake(node, name);
+                if (ruby == null) {
+                    listener.fatalError("No ruby installation named " + name);
+                    return null;
+                }
+                if (ruby == rake) {
+                    continue;
+                }
+                String exec = ExecutableCache.getExecutable(getNodeName(node), rakeLauncher.getChannel(), ruby, bundleExec);
+                if (exec == null) {
+                    listener.fatalError("The " + (bundleExec ? "bundle" : "rake") + " executable of " + name + " doesn't exist");
+                    return null;
+                }
+                List<String> rubyArgs = new ArrayList<String>(args);
+                rubyArgs.set(0, exec);
+
+                FilePath copy = fanOut.copyWorkspace(rakeLauncher, build.getModuleRoot(), name, logger);
+                FilePath rubyDir = rakeWorkingDir != null && rakeWorkingDir.length() > 0
+                    ? new FilePath(copy, rakeWorkingDir) : copy;
+                if (bundleExec && bundleCache) {
+                    // the copied bundle is the one of the first ruby, this ruby restores its own
+                    rubyDir.child(BundleCache.BUNDLE_PATH).deleteRecursive();
+                }
+                EnvVars rubyEnv = build.getEnvironment(listener);
+                addRubyEnvironment(rubyEnv, ruby, pathSeparator);
+                if (!prepareRuby(node, rakeLauncher, ruby, exec, rubyEnv, rubyDir, logger)) {
+                    listener.fatalError("bundle install failed with " + name);
+                    return null;
+                }
+                ProcessSampler.mark(env, rubyEnv);
+                fanOut.add(name, rubyArgs, rubyEnv, rubyDir);
+            }
+            ready = true;
+            return fanOut;
+        } finally {
+            if (!ready) {
+                fanOut.deleteCopies();
+            }
+        }
+    }
+
+    /**
+     * A build artifact for the compressed output of this step, not used by another step of the build.
+     */
+    private static File getOutputArchive(AbstractBuild<?,?> build) {
+        File artifacts = build.getArtifactsDir();
+        artifacts.mkdirs();
+        File archive = new File(artifacts, BoundedConsole.ARCHIVE_NAME);
+        for (int i = 2; archive.exists(); i++) {
+            archive = new File(artifacts, BoundedConsole.ARCHIVE_NAME.replace(".log.gz", "-" + i + ".log.gz"));
+        }
+        return archive;
+    }
+
+    private static String getNodeName(Node node) {
+        return node != null ? node.getNodeName() : "";
+    }
+
+    /**
+     * Adds the rake options of this step, the ones that go before the tasks.
+     */
+    void addRakeOptions(ArgumentListBuilder args) {
+        if (rakeFile != null && rakeFile.length() > 0) {
+            args.add("--rakefile", rakeFile);
+        }
+        if (rakeLibDir != null && rakeLibDir.length() > 0) {
+            args.add("--libdir", rakeLibDir);
+        }
+        if (silent) {
+            args.add("--silent");
+        }
+        if (multitask) {
+            args.add("--multitask");
+        }
+        if (recordTimings) {
+            args.add("--execute-continue", TaskTimingOutputStream.HOOK);
+        }
+    }
+
+    /**
+     * Points the gem variables and the PATH of the environment at the given ruby installation.
+     */
+    static void addRubyEnvironment(Map<String, String> env, RubyInstallation rake, String pathSeparator) {
+        if (rake != null) {
+            if (rake.getGemHome() != null) {
+                env.put("GEM_HOME", rake.getGemHome());
+            }
+            if (rake.getGemPath() != null) {
+                env.put("GEM_PATH", rake.getGemPath());
+            }
+            if (rake.getBinPath() != null) {
+                StringBuilder builder = new StringBuilder();
+                String path = env.get("PATH");
+                if (path != null) {
+                    builder.append(path).append(pathSeparator);
+                }
+
+                builder.append(rake.getBinPath());
+                env.put("PATH", builder.toString());
+            }
+        }
+    }
+
+    /**
+     * Identifies this step among the rake steps of the project, along with every option that
+     * changes what it runs or how; the options that only change how rake is launched, such as the
+     * warm workers or the JRuby startup archive, or how its output is shown are left out.
+     */
+    private String getStepKey() {
+        return Util.getDigestOf(rakeInstallation + "\n" + rakeFile + "\n" + rakeLibDir + "\n" + rakeWorkingDir
+            + "\n" + tasks + "\n" + silent + "\n" + bundleExec + "\n" + taskGroups
+            + "\n" + scheduleTasks + "\n" + multitask + "\n" + parallelJobs + "\n" + rubies
+            + "\n" + jrubyDev + "\n" + inputs);
+    }
+
+    private String getLastFingerprint(AbstractBuild<?,?> build) {
+        AbstractBuild<?,?> last = build.getProject().getLastSuccessfulBuild();
+        RakeInputsAction action = last != null ? last.getAction(RakeInputsAction.class) : null;
+        return action != null ? action.getFingerprint(getStepKey()) : null;
+    }
+
+    private void recordFingerprint(AbstractBuild<?,?> build, String fingerprint) {
+        RakeInputsAction action = build.getAction(RakeInputsAction.class);
+        if (action == null) {
+            action = new RakeInputsAction();
+            build.addAction(action);
+        }
+        action.setFingerprint(getStepKey(), fingerprint);
+    }
+
     @Override
     public RakeDescriptor getDescriptor() {
         return DESCRIPTOR;
@@ -221,6 +651,70 @@ public class Rake extends Builder {
         return rakeWorkingDir;
     }
 
+    public boolean isWarmWorkers() {
+        return warmWorkers;
+    }
+
+    public String getTaskGroups() {
+        return taskGroups;
+    }
+
+    public boolean isScheduleTasks() {
+        return scheduleTasks;
+    }
+
+    public boolean isRecordTimings() {
+        return recordTimings;
+    }
+
+    public boolean isBundleCache() {
+        return bundleCache;
+    }
+
+    public String getInputs() {
+        return inputs;
+    }
+
+    public String getCacheableTasks() {
+        return cacheableTasks;
+    }
+
+    public boolean isLaunchOnLastBuiltNode() {
+        return launchOnLastBuiltNode;
+    }
+
+    public boolean isParallelJobs() {
+        return parallelJobs;
+    }
+
+    public boolean isMultitask() {
+        return multitask;
+    }
+
+    public String getRubies() {
+        return rubies;
+    }
+
+    public int getMaxConcurrentRubies() {
+        return maxConcurrentRubies;
+    }
+
+    public boolean isJrubyStartup() {
+        return jrubyStartup;
+    }
+
+    public boolean isJrubyDev() {
+        return jrubyDev;
+    }
+
+    public boolean isBoundedConsole() {
+        return boundedConsole;
+    }
+
+    public int getResourceSampleInterval() {
+        return resourceSampleInterval;
+    }
+
     public static final class RakeDescriptor extends Descriptor<Builder> {
 
         @CopyOnWrite
@@ -229,6 +723,34 @@ public class Rake extends Builder {
         @CopyOnWrite
         private volatile Rvm rvm;
 
+        private volatile WarmWorkers warmWorkers;
+
+        private volatile BundleCache bundleCache;
+
+        private volatile TaskOutputCache taskOutputCache;
+
+        private transient InstallationIndex index;
+
+        private transient final Object refreshLock = new Object();
+
+        private transient FutureTask<Void> refresh;
+
+        private transient FutureTask<Void> followUp;
+
+        private transient volatile boolean discovered;
+
+        /**
+         * The installations builds look up; {@link #installations} only holds them for persistence.
+         */
+        private transient final AtomicReference<InstallationRegistry> registry =
+            new AtomicReference<InstallationRegistry>(InstallationRegistry.EMPTY);
+
+        /**
+         * Gemsets resolved on demand since the last discovery.
+         */
+        private transient final ConcurrentMap<String, RubyInstallation> gemsets =
+            new ConcurrentHashMap<String, RubyInstallation>();
+
         private RakeDescriptor() {
             super(Rake.class);
             load();
@@ -236,15 +758,108 @@ public class Rake extends Builder {
 
         @Override
         public synchronized void load() {
+            long start = System.currentTimeMillis();
             super.load();
-
-            loadInstallations();
+            registry.set(new InstallationRegistry(installations));
+            LOGGER.log(Level.INFO, "Loaded the rake configuration in {0} ms, the ruby installations are discovered later",
+                System.currentTimeMillis() - start);
         }
 
+        /**
+         * Discovers the installations again, with a scan that starts after the call: a scan already
+         * in progress may have read the installations before the change the caller wants discovered.
+         * Concurrent callers share a single scan: the ones arriving while a scan is in progress share
+         * the one that follows it, instead of each starting their own.
+         */
         public void loadInstallations() {
-            installations = getCanonicalRubies(installations);
-            installations = getGlobalRubies(rvm, installations);
-            Arrays.sort(installations);
+            FutureTask<Void> previous = null;
+            FutureTask<Void> scan;
+            synchronized (refreshLock) {
+                if (refresh == null || refresh.isDone()) {
+                    scan = followUp != null ? followUp : newScan();
+                    followUp = null;
+                    refresh = scan;
+                } else {
+                    previous = refresh;
+                    if (followUp == null) {
+                        followUp = newScan();
+                    }
+                    scan = followUp;
+                }
+            }
+
+            try {
+                if (previous != null) {
+                    try {
+                        previous.get();
+                    } catch (ExecutionException e) {
+                        // reported by the callers of that scan
+                    }
+                    synchronized (refreshLock) {
+                        if (followUp == scan) {
+                            followUp = null;
+                            refresh = scan;
+                        }
+                    }
+                }
+                // only the first caller runs the scan, the others wait for it
+                scan.run();
+                scan.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                LOGGER.log(Level.WARNING, "Unable to discover the ruby installations", e.getCause());
+            }
+        }
+
+        private FutureTask<Void> newScan() {
+            return new FutureTask<Void>(new Runnable() {
+                public void run() {
+                    scanInstallations();
+                }
+            }, null) {
+                @Override
+                protected void done() {
+                    synchronized (refreshLock) {
+                        if (refresh == this) {
+                            refresh = null;
+                        }
+                    }
+                }
+            };
+        }
+
+        private void scanInstallations() {
+            long start = System.currentTimeMillis();
+            ExecutableCache.invalidateAll();
+            gemsets.clear();
+            // reading the index may write it, so it's done once before the update, which may be retried
+            Collection<File> found = null;
+            try {
+                found = getIndex().getRubyInstallations(getSystemPath());
+            } catch (IOException e) {
+                Util.displayIOException(e, null);
+            }
+            final Collection<File> homes = found;
+            final RubyInstallation[] rvmRubies = getRvmRubies(rvm);
+            // the scan starts over from the configuration, so it drops the installations that are
+            // gone; a configuration saved during the scan is merged with it rather than overwritten
+            InstallationRegistry discovery = InstallationRegistry.update(registry, new InstallationRegistry.Update() {
+                public InstallationRegistry apply(InstallationRegistry current) {
+                    InstallationRegistry scan = new InstallationRegistry(installations);
+                    if (homes != null) {
+                        try {
+                            scan = scan.withHomes(homes);
+                        } catch (IOException e) {
+                            Util.displayIOException(e, null);
+                        }
+                    }
+                    return scan.with(rvmRubies).sorted();
+                }
+            });
+            discovered = true;
+            LOGGER.log(Level.INFO, "Discovered {0} ruby installation(s) in {1} ms",
+                new Object[] {discovery.size(), System.currentTimeMillis() - start});
         }
 
         public String getDisplayName() {
@@ -263,11 +878,20 @@ public class Rake extends Builder {
 
         @Override
         public boolean configure(StaplerRequest req, JSONObject formData) throws FormException {
-            installations = req.bindParametersToList(RubyInstallation.class, "rake.")
+            RubyInstallation[] configured = req.bindParametersToList(RubyInstallation.class, "rake.")
                 .toArray(new RubyInstallation[0]);
 
             rvm = req.bindParameters(Rvm.class, "rvm.");
-            installations = getGlobalRubies(rvm, installations);
+            warmWorkers = req.bindParameters(WarmWorkers.class, "workers.");
+            bundleCache = req.bindParameters(BundleCache.class, "bundleCache.");
+            taskOutputCache = req.bindParameters(TaskOutputCache.class, "taskOutputCache.");
+            InstallationRegistry configuration = new InstallationRegistry(configured).with(getRvmRubies(rvm));
+            // a scan reading the new snapshot reads the new configuration too
+            installations = configuration.getInstallations();
+            registry.set(configuration);
+            discovered = true;
+            ExecutableCache.invalidateAll();
+            gemsets.clear();
 
             save();
             return true;
@@ -277,8 +901,66 @@ public class Rake extends Builder {
             return rvm;
         }
 
+        public WarmWorkers getWarmWorkers() {
+            return warmWorkers != null ? warmWorkers :
+                new WarmWorkers(WarmWorkers.DEFAULT_MAX_WORKERS, WarmWorkers.DEFAULT_IDLE_MINUTES);
+        }
+
+        public BundleCache getBundleCache() {
+            return bundleCache != null ? bundleCache : new BundleCache(BundleCache.DEFAULT_MAX_MEGABYTES);
+        }
+
+        public TaskOutputCache getTaskOutputCache() {
+            return taskOutputCache != null ? taskOutputCache : new TaskOutputCache(null);
+        }
+
+        /**
+         * The installations known so far. Until the first discovery is done this is the persisted
+         * list, and only when nothing was persisted does the caller wait for the discovery.
+         */
         public RubyInstallation[] getInstallations() {
-            return installations;
+            return getRegistry().getInstallations();
+        }
+
+        /**
+         * Looks an installation up by name. An RVM gemset missing from the known installations is
+         * resolved on its own, without discovering every installation again.
+         */
+        public RubyInstallation getInstallation(String name) {
+            RubyInstallation ruby = registry.get().get(name);
+            if (ruby == null && name != null) {
+                ruby = resolveGemset(name);
+            }
+            if (ruby == null && !discovered) {
+                ruby = getRegistry().get(name);
+            }
+            return ruby;
+        }
+
+        private RubyInstallation resolveGemset(String name) {
+            RubyInstallation ruby = gemsets.get(name);
+            if (ruby == null) {
+                Rvm rvm = getRvmOrDefault();
+                if (rvm == null) {
+                    return null;
+                }
+                try {
+                    ruby = new RvmScanner(rvm).resolve(name);
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Unable to resolve the gemset " + name, e);
+                }
+                if (ruby != null) {
+                    gemsets.put(name, ruby);
+                }
+            }
+            return ruby;
+        }
+
+        private InstallationRegistry getRegistry() {
+            if (!discovered && registry.get().size() == 0) {
+                loadInstallations();
+            }
+            return registry.get();
         }
 
         public FormValidation doCheckRubyInstallation(@QueryParameter final String value) {
@@ -299,21 +981,29 @@ public class Rake extends Builder {
             return FormValidation.ok();
         }
 
-        private RubyInstallation[] getGlobalRubies(Rvm rvm, RubyInstallation[] installations) {
+        /**
+         * The configured RVM tree, or the one of the user running Jenkins when none is configured.
+         */
+        Rvm getRvmOrDefault() {
+            Rvm rvm = this.rvm;
             if (rvm == null || StringUtils.isEmpty(rvm.getPath())) {
-                System.err.println(rvm);
                 rvm = RvmUtil.getDefaultRvm();
             }
+            return rvm;
+        }
 
-            if (rvm != null) {
-                RubyInstallation[] rvmInstallations = RvmUtil.getRvmRubies(rvm);
-                Collection<RubyInstallation> tmp = new LinkedHashSet<RubyInstallation>(Arrays.asList(installations));
-                tmp.addAll(Arrays.asList(rvmInstallations));
-
-                installations = tmp.toArray(new RubyInstallation[tmp.size()]);
+        private RubyInstallation[] getRvmRubies(Rvm rvm) {
+            if (rvm == null || StringUtils.isEmpty(rvm.getPath())) {
+                rvm = RvmUtil.getDefaultRvm();
             }
+            return rvm != null ? getIndex().getRvmRubies(rvm) : new RubyInstallation[0];
+        }
 
-            return installations;
+        private synchronized InstallationIndex getIndex() {
+            if (index == null) {
+                index = InstallationIndex.load();
+            }
+            return index;
         }
 
     }
@@ -0,0 +1,23 @@
+package hudson.plugins.rake;
+
+import hudson.model.InvisibleAction;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Input fingerprints recorded by the rake steps of a build, so the next build can
+ * skip the steps whose inputs didn't change.
+ */
+public class RakeInputsAction extends InvisibleAction {
+
+    private final Map<String, String> fingerprints = new HashMap<String, String>();
+
+    synchronized String getFingerprint(String step) {
+        return fingerprints.get(step);
+    }
+
+    synchronized void setFingerprint(String step, String fingerprint) {
+        fingerprints.put(step, fingerprint);
+    }
+}
@@ -0,0 +1,97 @@
+package hudson.plugins.rake;
+
+import hudson.model.AbstractBuild;
+import hudson.model.Action;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * How long the rake steps of a build took to get ready to launch rake: getting a launcher on the
+ * chosen node and resolving the installation and its executable, then preparing the workspace
+ * with the bundle, the JRuby archive and the cached task outputs.
+ */
+public class RakeLaunchAction implements Action {
+
+    private final List<Launch> launches = new ArrayList<Launch>();
+
+    public String getIconFileName() {
+        return "clock.gif";
+    }
+
+    public String getDisplayName() {
+        return "Rake Launch Setup";
+    }
+
+    public String getUrlName() {
+        return "rakeLaunch";
+    }
+
+    static void record(AbstractBuild<?, ?> build, String locality, long launcherMillis, long setupMillis,
+            long prepareMillis) {
+        RakeLaunchAction action = build.getAction(RakeLaunchAction.class);
+        if (action == null) {
+            action = new RakeLaunchAction();
+            build.addAction(action);
+        }
+        action.add(new Launch(locality, launcherMillis, setupMillis, prepareMillis));
+    }
+
+    private synchronized void add(Launch launch) {
+        launches.add(launch);
+    }
+
+    /**
+     * The launches of the rake steps, in the order they ran.
+     */
+    public synchronized List<Launch> getLaunches() {
+        return Collections.unmodifiableList(new ArrayList<Launch>(launches));
+    }
+
+    public String formatDuration(long millis) {
+        return hudson.Util.getTimeSpanString(millis);
+    }
+
+    public static final class Launch {
+        private final String locality;
+        private final long launcherMillis;
+        private final long setupMillis;
+        private final long prepareMillis;
+
+        Launch(String locality, long launcherMillis, long setupMillis, long prepareMillis) {
+            this.locality = locality;
+            this.launcherMillis = launcherMillis;
+            this.setupMillis = setupMillis;
+            this.prepareMillis = prepareMillis;
+        }
+
+        /**
+         * Where rake was launched, the node of the executor or the node of the last build.
+         */
+        public String getLocality() {
+            return locality;
+        }
+
+        /**
+         * Getting a launcher on the node rake runs on.
+         */
+        public long getLauncherMillis() {
+            return launcherMillis;
+        }
+
+        /**
+         * Getting the launcher, then resolving the installation and its executable.
+         */
+        public long getSetupMillis() {
+            return setupMillis;
+        }
+
+        /**
+         * Installing or restoring the bundle, the JRuby archive and the cached task outputs.
+         */
+        public long getPrepareMillis() {
+            return prepareMillis;
+        }
+    }
+}
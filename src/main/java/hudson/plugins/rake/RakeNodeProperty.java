@@ -0,0 +1,52 @@
+package hudson.plugins.rake;
+
+import hudson.Extension;
+import hudson.model.Node;
+import hudson.slaves.NodeProperty;
+import hudson.slaves.NodePropertyDescriptor;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Rake settings of a node. The number of rake jobs defaults to the cores of the node shared
+ * among its executors, so large nodes get more parallelism and busy ones aren't oversubscribed.
+ */
+public class RakeNodeProperty extends NodeProperty<Node> {
+
+    private final int jobs;
+
+    @DataBoundConstructor
+    public RakeNodeProperty(int jobs) {
+        this.jobs = Math.max(0, jobs);
+    }
+
+    /**
+     * Number of rake jobs on this node, <code>0</code> to size them after its cores and executors.
+     */
+    public int getJobs() {
+        return jobs;
+    }
+
+    /**
+     * The number of rake jobs of a node with the given cores.
+     */
+    static int getJobs(Node node, int cores) {
+        RakeNodeProperty property = node != null ? node.getNodeProperties().get(RakeNodeProperty.class) : null;
+        if (property != null && property.getJobs() > 0) {
+            return property.getJobs();
+        }
+        return getJobs(cores, node != null ? node.getNumExecutors() : 1);
+    }
+
+    static int getJobs(int cores, int executors) {
+        return Math.max(1, cores / Math.max(1, executors));
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends NodePropertyDescriptor {
+        @Override
+        public String getDisplayName() {
+            return "Rake";
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package hudson.plugins.rake;
+
+import hudson.model.AbstractBuild;
+import hudson.model.Action;
+import hudson.util.ChartUtil;
+import hudson.util.ChartUtil.NumberOnlyBuildLabel;
+import hudson.util.DataSetBuilder;
+import hudson.util.ShiftedCategoryAxis;
+
+import java.awt.Color;
+import java.io.IOException;
+
+import org.jfree.chart.ChartFactory;
+import org.jfree.chart.JFreeChart;
+import org.jfree.chart.axis.CategoryAxis;
+import org.jfree.chart.axis.CategoryLabelPositions;
+import org.jfree.chart.plot.CategoryPlot;
+import org.jfree.chart.plot.PlotOrientation;
+import org.jfree.data.category.CategoryDataset;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Resources used by the rake processes of a build, sampled on the node running them, with
+ * trends across builds. With several rake steps the peak memory is the largest of the steps
+ * and the other resources add up.
+ */
+public class RakeResourceAction implements Action {
+
+    private static final int TREND_BUILDS = 30;
+    private static final double MEGABYTE = 1024 * 1024;
+
+    private long peakRssBytes;
+    private long cpuMillis;
+    private long readBytes;
+    private long writeBytes;
+    private int samples;
+
+    static void record(AbstractBuild<?, ?> build, ProcessSampler.Usage usage) {
+        RakeResourceAction action = build.getAction(RakeResourceAction.class);
+        if (action == null) {
+            action = new RakeResourceAction();
+            build.addAction(action);
+        }
+        action.add(usage);
+    }
+
+    private synchronized void add(ProcessSampler.Usage usage) {
+        peakRssBytes = Math.max(peakRssBytes, usage.getPeakRssBytes());
+        cpuMillis += usage.getCpuMillis();
+        readBytes += usage.getReadBytes();
+        writeBytes += usage.getWriteBytes();
+        samples += usage.getSamples();
+    }
+
+    public String getIconFileName() {
+        return "graph.gif";
+    }
+
+    public String getDisplayName() {
+        return "Rake Resource Usage";
+    }
+
+    public String getUrlName() {
+        return "rakeResources";
+    }
+
+    public synchronized long getPeakRssBytes() {
+        return peakRssBytes;
+    }
+
+    public synchronized long getCpuMillis() {
+        return cpuMillis;
+    }
+
+    public synchronized long getReadBytes() {
+        return readBytes;
+    }
+
+    public synchronized long getWriteBytes() {
+        return writeBytes;
+    }
+
+    public synchronized int getSamples() {
+        return samples;
+    }
+
+    public String formatBytes(long bytes) {
+        return String.format("%.1f MB", bytes / MEGABYTE);
+    }
+
+    public String formatDuration(long millis) {
+        return hudson.Util.getTimeSpanString(millis);
+    }
+
+    public void doMemoryGraph(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        graph(req, rsp, "MB", new Metric() {
+            public void add(DataSetBuilder<String, NumberOnlyBuildLabel> dsb, RakeResourceAction a, NumberOnlyBuildLabel label) {
+                dsb.add(a.getPeakRssBytes() / MEGABYTE, "peak RSS", label);
+            }
+        });
+    }
+
+    public void doCpuGraph(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        graph(req, rsp, "seconds", new Metric() {
+            public void add(DataSetBuilder<String, NumberOnlyBuildLabel> dsb, RakeResourceAction a, NumberOnlyBuildLabel label) {
+                dsb.add(a.getCpuMillis() / 1000.0, "CPU", label);
+            }
+        });
+    }
+
+    public void doIoGraph(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        graph(req, rsp, "MB", new Metric() {
+            public void add(DataSetBuilder<String, NumberOnlyBuildLabel> dsb, RakeResourceAction a, NumberOnlyBuildLabel label) {
+                dsb.add(a.getReadBytes() / MEGABYTE, "read", label);
+                dsb.add(a.getWriteBytes() / MEGABYTE, "written", label);
+            }
+        });
+    }
+
+    private interface Metric {
+        void add(DataSetBuilder<String, NumberOnlyBuildLabel> dsb, RakeResourceAction action, NumberOnlyBuildLabel label);
+    }
+
+    private static void graph(StaplerRequest req, StaplerResponse rsp, String unit, Metric metric) throws IOException {
+        AbstractBuild<?,?> build = req.findAncestorObject(AbstractBuild.class);
+        if (build == null || ChartUtil.awtProblemCause != null) {
+            rsp.sendRedirect2(req.getContextPath() + "/images/headless.png");
+            return;
+        }
+
+        DataSetBuilder<String, NumberOnlyBuildLabel> dsb = new DataSetBuilder<String, NumberOnlyBuildLabel>();
+        int count = 0;
+        for (AbstractBuild<?,?> b = build; b != null && count < TREND_BUILDS; b = b.getPreviousBuild(), count++) {
+            RakeResourceAction resources = b.getAction(RakeResourceAction.class);
+            if (resources != null) {
+                metric.add(dsb, resources, new NumberOnlyBuildLabel(b));
+            }
+        }
+
+        ChartUtil.generateGraph(req, rsp, createChart(dsb.build(), unit), 500, 200);
+    }
+
+    private static JFreeChart createChart(CategoryDataset dataset, String unit) {
+        JFreeChart chart = ChartFactory.createLineChart(null, null, unit, dataset,
+            PlotOrientation.VERTICAL, true, true, false);
+        chart.setBackgroundPaint(Color.white);
+
+        CategoryPlot plot = chart.getCategoryPlot();
+        plot.setBackgroundPaint(Color.WHITE);
+        plot.setOutlinePaint(null);
+        plot.setRangeGridlinesVisible(true);
+        plot.setRangeGridlinePaint(Color.black);
+
+        CategoryAxis domainAxis = new ShiftedCategoryAxis(null);
+        plot.setDomainAxis(domainAxis);
+        domainAxis.setCategoryLabelPositions(CategoryLabelPositions.UP_90);
+        domainAxis.setLowerMargin(0.0);
+        domainAxis.setUpperMargin(0.0);
+        domainAxis.setCategoryMargin(0.0);
+
+        return chart;
+    }
+}
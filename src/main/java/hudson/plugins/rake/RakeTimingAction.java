@@ -0,0 +1,134 @@
+package hudson.plugins.rake;
+
+import hudson.model.AbstractBuild;
+import hudson.model.Action;
+import hudson.util.ChartUtil;
+import hudson.util.ChartUtil.NumberOnlyBuildLabel;
+import hudson.util.DataSetBuilder;
+import hudson.util.ShiftedCategoryAxis;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jfree.chart.ChartFactory;
+import org.jfree.chart.JFreeChart;
+import org.jfree.chart.axis.CategoryAxis;
+import org.jfree.chart.axis.CategoryLabelPositions;
+import org.jfree.chart.plot.CategoryPlot;
+import org.jfree.chart.plot.PlotOrientation;
+import org.jfree.data.category.CategoryDataset;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Duration of every rake task executed by a build, with a trend of the slowest tasks across builds.
+ */
+public class RakeTimingAction implements Action {
+
+    private static final int TREND_BUILDS = 30;
+    private static final int TREND_TASKS = 8;
+
+    private final Map<String, Long> durations = new LinkedHashMap<String, Long>();
+
+    public String getIconFileName() {
+        return "clock.gif";
+    }
+
+    public String getDisplayName() {
+        return "Rake Task Timings";
+    }
+
+    public String getUrlName() {
+        return "rakeTimings";
+    }
+
+    /**
+     * Records the duration of a task; a task executed several times accumulates its durations.
+     */
+    synchronized void record(String task, long millis) {
+        Long current = durations.get(task);
+        durations.put(task, current != null ? current + millis : millis);
+    }
+
+    public synchronized Long getDuration(String task) {
+        return durations.get(task);
+    }
+
+    /**
+     * The task durations in milliseconds, slowest first.
+     */
+    public synchronized List<Map.Entry<String, Long>> getTimings() {
+        List<Map.Entry<String, Long>> timings = new ArrayList<Map.Entry<String, Long>>(
+            new LinkedHashMap<String, Long>(durations).entrySet());
+        Collections.sort(timings, new Comparator<Map.Entry<String, Long>>() {
+            public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+                return b.getValue().compareTo(a.getValue());
+            }
+        });
+        return timings;
+    }
+
+    public String formatDuration(long millis) {
+        return hudson.Util.getTimeSpanString(millis);
+    }
+
+    public void doGraph(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        AbstractBuild<?,?> build = req.findAncestorObject(AbstractBuild.class);
+        if (build == null || ChartUtil.awtProblemCause != null) {
+            rsp.sendRedirect2(req.getContextPath() + "/images/headless.png");
+            return;
+        }
+
+        List<String> tasks = new ArrayList<String>();
+        for (Map.Entry<String, Long> timing : getTimings()) {
+            if (tasks.size() == TREND_TASKS) {
+                break;
+            }
+            tasks.add(timing.getKey());
+        }
+
+        DataSetBuilder<String, NumberOnlyBuildLabel> dsb = new DataSetBuilder<String, NumberOnlyBuildLabel>();
+        int count = 0;
+        for (AbstractBuild<?,?> b = build; b != null && count < TREND_BUILDS; b = b.getPreviousBuild(), count++) {
+            RakeTimingAction timings = b.getAction(RakeTimingAction.class);
+            if (timings == null) {
+                continue;
+            }
+            for (String task : tasks) {
+                Long duration = timings.getDuration(task);
+                if (duration != null) {
+                    dsb.add(duration / 1000.0, task, new NumberOnlyBuildLabel(b));
+                }
+            }
+        }
+
+        ChartUtil.generateGraph(req, rsp, createChart(dsb.build()), 500, 250);
+    }
+
+    private static JFreeChart createChart(CategoryDataset dataset) {
+        JFreeChart chart = ChartFactory.createLineChart(null, null, "seconds", dataset,
+            PlotOrientation.VERTICAL, true, true, false);
+        chart.setBackgroundPaint(Color.white);
+
+        CategoryPlot plot = chart.getCategoryPlot();
+        plot.setBackgroundPaint(Color.WHITE);
+        plot.setOutlinePaint(null);
+        plot.setRangeGridlinesVisible(true);
+        plot.setRangeGridlinePaint(Color.black);
+
+        CategoryAxis domainAxis = new ShiftedCategoryAxis(null);
+        plot.setDomainAxis(domainAxis);
+        domainAxis.setCategoryLabelPositions(CategoryLabelPositions.UP_90);
+        domainAxis.setLowerMargin(0.0);
+        domainAxis.setUpperMargin(0.0);
+        domainAxis.setCategoryMargin(0.0);
+
+        return chart;
+    }
+}
@@ -0,0 +1,155 @@
+package hudson.plugins.rake;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Proc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs the same rake invocation against several ruby installations at once, one process per
+ * ruby, each in the environment of its own installation, with its own bundle and JRuby options.
+ * The first ruby runs in the workspace; every other one runs in its own copy of the workspace,
+ * next to it, so rubies don't overwrite each other's files. The copies are deleted once rake is done, so the artifacts and reports of
+ * a build are the ones of the first ruby. The output of every ruby is streamed to the log as it
+ * comes, each line prefixed with the name of the ruby, followed by a summary of the result of
+ * every ruby.
+ */
+final class RubyFanOut {
+
+    private static final long POLL_INTERVAL = 100;
+
+    private final List<Run> runs = new ArrayList<Run>();
+    private final List<FilePath> copies = new ArrayList<FilePath>();
+
+    /**
+     * Adds a ruby to run.
+     * @param args The full command line, starting with the rake or bundle executable of the ruby.
+     * @param env The environment of the ruby, prepared like the one of the first ruby.
+     * @param workingDir Where rake runs, in the workspace or a copy of it.
+     */
+    void add(String name, List<String> args, Map<String, String> env, FilePath workingDir) {
+        runs.add(new Run(name, args, env, workingDir));
+    }
+
+    /**
+     * Copies the workspace for a ruby after the first, next to it, so the ruby can be prepared in
+     * its copy before any of them runs. The copies are deleted by {@link #run} or
+     * {@link #deleteCopies()}.
+     */
+    FilePath copyWorkspace(Launcher launcher, FilePath moduleRoot, String name, PrintStream logger)
+            throws IOException, InterruptedException {
+        FilePath copy = moduleRoot.getParent().child(moduleRoot.getName() + "@rake-" + BundleCache.sanitize(name));
+        copies.add(copy);
+        copy.deleteRecursive();
+        BundleCache.copy(launcher, moduleRoot, copy, logger);
+        return copy;
+    }
+
+    void deleteCopies() throws IOException, InterruptedException {
+        for (FilePath copy : copies) {
+            copy.deleteRecursive();
+        }
+        copies.clear();
+    }
+
+    /**
+     * Parses a list of installation names separated by commas or new lines.
+     */
+    static List<String> parse(String names) {
+        List<String> parsed = new ArrayList<String>();
+        if (names != null) {
+            for (String name : names.split("[,\r\n]+")) {
+                if (name.trim().length() > 0 && !parsed.contains(name.trim())) {
+                    parsed.add(name.trim());
+                }
+            }
+        }
+        return parsed;
+    }
+
+    /**
+     * Runs every ruby, then deletes the copies of the workspace.
+     * @return <code>true</code> if rake succeeded with every ruby.
+     */
+    boolean run(Launcher launcher, int maxConcurrent, PrintStream logger) throws IOException, InterruptedException {
+        int cap = Math.max(1, maxConcurrent);
+        logger.println("Running rake with " + runs.size() + " rubies, " + cap + " at a time");
+
+        List<Run> pending = new ArrayList<Run>(runs);
+        List<Run> running = new ArrayList<Run>();
+        try {
+            while (!pending.isEmpty() || !running.isEmpty()) {
+                while (!pending.isEmpty() && running.size() < cap) {
+                    Run run = pending.remove(0);
+                    run.start(launcher, logger);
+                    running.add(run);
+                }
+
+                Thread.sleep(POLL_INTERVAL);
+                for (Iterator<Run> it = running.iterator(); it.hasNext();) {
+                    Run run = it.next();
+                    if (!run.proc.isAlive()) {
+                        run.finish(logger);
+                        it.remove();
+                    }
+                }
+            }
+        } finally {
+            for (Run run : running) {
+                if (run.proc.isAlive()) {
+                    run.proc.kill();
+                }
+            }
+            deleteCopies();
+        }
+
+        boolean success = true;
+        logger.println("Rake results:");
+        for (Run run : runs) {
+            logger.println("  " + run.name + ": " + (run.result == 0 ? "SUCCESS" : "FAILURE (exit code " + run.result + ")")
+                + " in " + hudson.Util.getTimeSpanString(run.duration));
+            success &= run.result == 0;
+        }
+        return success;
+    }
+
+    private static final class Run {
+        private final String name;
+        private final List<String> args;
+        private final Map<String, String> env;
+
+        private final FilePath workingDir;
+        private OutputStream out;
+        private Proc proc;
+        private long start;
+        private long duration;
+        private int result = -1;
+
+        Run(String name, List<String> args, Map<String, String> env, FilePath workingDir) {
+            this.name = name;
+            this.args = args;
+            this.env = env;
+            this.workingDir = workingDir;
+        }
+
+        void start(Launcher launcher, PrintStream logger) throws IOException {
+            out = new ParallelTaskGroups.PrefixedOutputStream("[" + name + "] ", logger);
+            start = System.currentTimeMillis();
+            proc = launcher.launch().cmds(args).envs(env).stdout(out).pwd(workingDir).start();
+        }
+
+        void finish(PrintStream logger) throws IOException, InterruptedException {
+            result = proc.join();
+            duration = System.currentTimeMillis() - start;
+            out.close();
+            logger.println("[" + name + "] exit code " + result);
+        }
+    }
+}
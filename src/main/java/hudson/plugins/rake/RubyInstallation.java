@@ -2,6 +2,7 @@ package hudson.plugins.rake;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.Serializable;
 
 import org.kohsuke.stapler.DataBoundConstructor;
 
@@ -10,7 +11,7 @@ import org.kohsuke.stapler.DataBoundConstructor;
  * @author David Calavera
  *
  */
-public final class RubyInstallation implements Comparable<RubyInstallation> {
+public final class RubyInstallation implements Comparable<RubyInstallation>, Serializable {
     private final String name;
     private final String path;
 
@@ -82,4 +83,6 @@ public final class RubyInstallation implements Comparable<RubyInstallation> {
     public int compareTo(RubyInstallation other) {
         return this.name.compareTo(other.name);
     }
+
+    private static final long serialVersionUID = 1L;
 }
@@ -1,8 +1,10 @@
 package hudson.plugins.rake;
 
+import java.io.Serializable;
+
 import org.kohsuke.stapler.DataBoundConstructor;
 
-public class Rvm {
+public class Rvm implements Serializable {
     private final String path;
 
     @DataBoundConstructor
@@ -13,4 +15,6 @@ public class Rvm {
     public String getPath() {
         return path;
     }
+
+    private static final long serialVersionUID = 1L;
 }
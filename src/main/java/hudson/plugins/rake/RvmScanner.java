@@ -0,0 +1,266 @@
+package hudson.plugins.rake;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * Single pass scanner of an RVM tree. The <code>rubies</code> and <code>gems</code> directories
+ * are listed once, every gemset is canonicalized and inspected once, and the gemsets of a ruby
+ * are found through a prefix lookup instead of listing the gems directory again for each ruby.
+ */
+class RvmScanner {
+
+    private final File rubiesDir;
+    private final File gemsDir;
+    private final DiscoveryFiles files;
+
+    RvmScanner(Rvm rvm) {
+        this(rvm, DiscoveryFiles.DIRECT);
+    }
+
+    RvmScanner(Rvm rvm, DiscoveryFiles files) {
+        this.rubiesDir = new File(rvm.getPath(), "rubies");
+        this.gemsDir = new File(rvm.getPath(), "gems");
+        this.files = files;
+    }
+
+    RubyInstallation[] scan() throws IOException {
+        Collection<RubyInstallation> rubies = new LinkedHashSet<RubyInstallation>();
+
+        File[] rubyDirs = files.listFiles(rubiesDir);
+        File[] gemDirs = files.listFiles(gemsDir);
+        if (rubyDirs == null || gemDirs == null) {
+            return new RubyInstallation[0];
+        }
+
+        TreeMap<String, Gemset> gemsets = new TreeMap<String, Gemset>();
+        for (int i = 0; i < gemDirs.length; i++) {
+            gemsets.put(gemDirs[i].getName(), new Gemset(gemDirs[i], i, files));
+        }
+
+        for (File candidate : rubyDirs) {
+            String name = candidate.getName();
+
+            List<Gemset> gems = new ArrayList<Gemset>();
+            Gemset global = null;
+            for (Gemset gemset : byPrefix(gemsets, name)) {
+                if (gemset.name.endsWith("@global") && (global == null || gemset.index < global.index)) {
+                    global = gemset;
+                }
+                if (!gemset.name.endsWith("@")) {
+                    gems.add(gemset);
+                }
+            }
+
+            TreeMap<String, Gemset> byCanonicalPath = new TreeMap<String, Gemset>();
+            for (Gemset gemset : gems) {
+                putFirst(byCanonicalPath, gemset);
+            }
+
+            String path = null;
+            for (Gemset gemCandidate : gems) {
+                if (path == null) {
+                    path = files.getCanonicalFile(candidate).getPath();
+                }
+                RubyInstallation ruby = build(name, path, gemCandidate, global, byCanonicalPath);
+                if (ruby != null) {
+                    rubies.add(ruby);
+                }
+            }
+        }
+
+        return rubies.toArray(new RubyInstallation[rubies.size()]);
+    }
+
+    /**
+     * Resolves a single <code>ruby</code> or <code>ruby@gemset</code> installation, only inspecting
+     * the gemset itself, the ruby's global gemset and the gemsets nested under the requested one.
+     * @return The installation, or <code>null</code> if the tree has no such usable gemset.
+     */
+    RubyInstallation resolve(String installation) throws IOException {
+        int at = installation.indexOf('@');
+        final String name = at >= 0 ? installation.substring(0, at) : installation;
+        File candidate = new File(rubiesDir, name);
+        if (name.length() == 0 || installation.endsWith("@") || !files.isDirectory(candidate)) {
+            return null;
+        }
+
+        String[] gemNames = files.list(gemsDir, new FilenameFilter() {
+            public boolean accept(File dir, String file) {
+                return file.startsWith(name);
+            }
+        });
+        if (gemNames == null) {
+            return null;
+        }
+
+        Gemset gemCandidate = null;
+        Gemset global = null;
+        TreeMap<String, Gemset> byCanonicalPath = new TreeMap<String, Gemset>();
+        for (int i = 0; i < gemNames.length; i++) {
+            String gemName = gemNames[i];
+            Gemset gemset = null;
+            if (gemName.equals(installation)) {
+                gemCandidate = gemset = new Gemset(new File(gemsDir, gemName), i, files);
+                putFirst(byCanonicalPath, gemCandidate);
+            }
+            if (gemName.endsWith("@global") && global == null) {
+                global = gemset != null ? gemset : new Gemset(new File(gemsDir, gemName), i, files);
+            }
+            if (gemName.startsWith(installation + "@") && !gemName.endsWith("@")) {
+                Gemset nested = new Gemset(new File(gemsDir, gemName), i, files);
+                putFirst(byCanonicalPath, nested);
+            }
+        }
+        if (gemCandidate == null) {
+            return null;
+        }
+
+        return build(name, files.getCanonicalFile(candidate).getPath(), gemCandidate, global, byCanonicalPath);
+    }
+
+    private RubyInstallation build(String name, String path, Gemset gemCandidate, Gemset global,
+            TreeMap<String, Gemset> byCanonicalPath) throws IOException {
+        String newpath = "";
+        if (gemCandidate.hasSpecifications() && !gemCandidate.hasRake()) {
+            // We did not find the rake gem in this gemset's bin directory; check in global
+            if (global != null && global.hasSpecifications()) {
+                if (!global.hasRake()) {
+                    // Rake not found in global either; this gemset is unusable
+                    return null;
+                }
+                // Rake was found in the global gemset; include it in the path
+                newpath = global.dir.getPath().concat(File.separator).concat("bin");
+            }
+        }
+
+        RubyInstallation ruby = new RubyInstallation(gemCandidate.name, path);
+
+        ruby.setGemHome(gemCandidate.getCanonicalPath());
+        ruby.setGemPath(buildGemPath(ruby.getGemHome(), global, byCanonicalPath));
+
+        // Add RVM Ruby path
+        if (newpath.length() > 0) {
+            newpath = newpath.concat(File.pathSeparator);
+        }
+        newpath = newpath.concat(rubiesDir.getPath() + File.separator + name + File.separator + "bin");
+
+        // Add GEM bin directory to path
+        newpath = newpath.concat(File.pathSeparator).concat(files.getCanonicalFile(new File(ruby.getGemHome(), "bin")).getPath());
+
+        ruby.setBinPath(newpath);
+        return ruby;
+    }
+
+    private static String buildGemPath(String currentGem, Gemset global, TreeMap<String, Gemset> candidateGems)
+            throws IOException {
+        Collection<String> paths = new LinkedHashSet<String>();
+        paths.add(currentGem);
+
+        for (Gemset gem : byPrefix(candidateGems, currentGem + "@")) {
+            if (gem.hasSpecifications()) {
+                paths.add(gem.getCanonicalPath());
+            }
+        }
+
+        if (global != null && global.hasSpecifications()) {
+            paths.add(global.getCanonicalPath());
+        }
+
+        StringBuilder path = new StringBuilder();
+        for (String canonical : paths) {
+            if (path.length() > 0) {
+                path.append(File.pathSeparator);
+            }
+            path.append(canonical);
+        }
+        return path.toString();
+    }
+
+    /**
+     * Indexes a gemset by its canonical path unless a gemset listed before it, which it is an
+     * alias of, already is, so the gem path keeps the order of the first of them.
+     */
+    private static void putFirst(TreeMap<String, Gemset> byCanonicalPath, Gemset gemset) throws IOException {
+        Gemset first = byCanonicalPath.get(gemset.getCanonicalPath());
+        if (first == null || gemset.index < first.index) {
+            byCanonicalPath.put(gemset.getCanonicalPath(), gemset);
+        }
+    }
+
+    /**
+     * The gemsets whose key starts with the given prefix, in the order the gems directory listed them.
+     */
+    private static List<Gemset> byPrefix(TreeMap<String, Gemset> gemsets, String prefix) {
+        SortedMap<String, Gemset> range = gemsets.subMap(prefix, prefix + Character.MAX_VALUE);
+        List<Gemset> matches = new ArrayList<Gemset>(range.values());
+        Collections.sort(matches, LISTING_ORDER);
+        return matches;
+    }
+
+    private static final Comparator<Gemset> LISTING_ORDER = new Comparator<Gemset>() {
+        public int compare(Gemset a, Gemset b) {
+            return a.index < b.index ? -1 : (a.index == b.index ? 0 : 1);
+        }
+    };
+
+    /**
+     * A directory of the RVM gems tree, inspected lazily and at most once.
+     */
+    private static final class Gemset {
+        private final File dir;
+        private final String name;
+        private final int index;
+        private final DiscoveryFiles files;
+
+        private String canonicalPath;
+        private Boolean specifications;
+        private Boolean rake;
+
+        Gemset(File dir, int index, DiscoveryFiles files) {
+            this.dir = dir;
+            this.name = dir.getName();
+            this.index = index;
+            this.files = files;
+        }
+
+        String getCanonicalPath() throws IOException {
+            if (canonicalPath == null) {
+                canonicalPath = files.getCanonicalFile(dir).getPath();
+            }
+            return canonicalPath;
+        }
+
+        boolean hasSpecifications() {
+            if (specifications == null) {
+                specifications = files.exists(new File(dir, "specifications"));
+            }
+            return specifications;
+        }
+
+        boolean hasRake() {
+            if (rake == null) {
+                String[] specs = hasSpecifications() ? files.list(new File(dir, "specifications"), rakeFilter) : null;
+                rake = specs != null && specs.length > 0;
+            }
+            return rake;
+        }
+    }
+
+    private static final FilenameFilter rakeFilter = new FilenameFilter() {
+        private final Pattern rakePattern = Pattern.compile("rake\\-([\\d.]+).gemspec");
+        public boolean accept(File path, String file) {
+            return rakePattern.matcher(file).matches();
+        }
+    };
+}
@@ -1,15 +1,11 @@
 package hudson.plugins.rake;
 
 import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.remoting.VirtualChannel;
 
 import java.io.File;
-import java.io.FileFilter;
 import java.io.IOException;
-import java.io.Serializable;
-import java.util.Collection;
-import java.util.LinkedHashSet;
-import java.util.List;
-import java.util.regex.Pattern;
 
 class RvmUtil {
 
@@ -28,154 +24,30 @@ class RvmUtil {
     }
 
     public static RubyInstallation[] getRvmRubies(Rvm rvm) {
-        Collection<RubyInstallation> rubies = new LinkedHashSet<RubyInstallation>();
+        return getRvmRubies(new FilePath(new File(rvm.getPath())));
+    }
 
+    /**
+     * Scans an RVM tree that may live on another node. The whole traversal runs where
+     * the tree is, so a remote scan costs a single channel round trip.
+     */
+    public static RubyInstallation[] getRvmRubies(FilePath rvm) {
         try {
-            FilePath rubiesPath = new FilePath(new File(rvm.getPath(), "rubies"));
-            FilePath gemsPath = new FilePath(new File(rvm.getPath(), "gems"));
-
-            if (rubiesPath.exists() && gemsPath.exists()) {
-                for (FilePath candidate : rubiesPath.list()) {
-                    String name = candidate.getName();
-
-                    RvmFilenameFilter filter = new RvmFilenameFilter(name);
-                    Collection<FilePath> gems = gemsPath.list(filter);
-
-                    FilePath global = getGlobal(name, gemsPath);
-
-                    for (FilePath gemCandidate : gems) {
-                        String newpath = "";
-                        FilePath specifications = getSpecifications(gemCandidate);
-                        if (specifications != null) {
-                            Collection<FilePath> specs = specifications.list(rakeFilter);
-                            if (specs == null || specs.size() == 0) {
-                                // We did not find the rake gem in this gemset's bin directory; check in global
-                                specifications = getSpecifications(global);
-                                if (specifications != null) {
-                                    specs = specifications.list(rakeFilter);
-                                    if (specs == null || specs.size() == 0) {
-                                        // Rake not found in global either; this gemset is unusable
-                                        continue;
-                                    } else {
-                                        // Rake was found in the global gemset; include it in the path
-                                        newpath = global.getRemote().concat(File.separator).concat("bin");
-                                    }
-                                }
-                            }
-                        }
-
-                        String path = new File(candidate.toURI()).getCanonicalPath();
-                        RubyInstallation ruby = new RubyInstallation(gemCandidate.getName(), path);
-
-                        ruby.setGemHome(new File(gemCandidate.toURI()).getCanonicalPath());
-                        ruby.setGemPath(buildGemPath(ruby.getGemHome(), global, gems));
-
-                        // Add RVM Ruby path
-                        if (newpath.length() > 0) {
-                            newpath = newpath.concat(File.pathSeparator);
-                        }
-                        newpath = newpath.concat(rubiesPath.getRemote() + File.separator + name + File.separator + "bin");
-
-                        // Add GEM bin directory to path
-                        newpath = newpath.concat(File.pathSeparator).concat(new File(ruby.getGemHome(), "bin").getCanonicalPath());
-
-                        ruby.setBinPath(newpath);
-
-                        rubies.add(ruby);
-                    }
-
-                }
-            }
+            return rvm.act(new RvmScan());
         } catch (InterruptedException e) {
             e.printStackTrace();
         } catch (IOException e) {
             e.printStackTrace();
         }
 
-        return rubies.toArray(new RubyInstallation[rubies.size()]);
-    }
-
-    private static String buildGemPath(String currentGem, FilePath global, Collection<FilePath> candidateGems)
-            throws InterruptedException, IOException {
-        StringBuilder path = new StringBuilder();
-
-        Collection<String> paths = new LinkedHashSet<String>();
-        paths.add(currentGem);
-
-        for (FilePath gem : candidateGems) {
-            File gemFile = new File(gem.toURI());
-            String canonicalPath = gemFile.getCanonicalPath();
-            if ((canonicalPath.startsWith(currentGem + "@") && gem.child("specifications").exists())) {
-                paths.add(canonicalPath);
-            }
-        }
-
-        if (global != null && global.child("specifications").exists()) {
-            File globalFile = new File(global.toURI());
-            paths.add(globalFile.getCanonicalPath());
-        }
-
-        for (String canonical : paths) {
-            if (path.length() > 0) {
-                path.append(File.pathSeparator);
-            }
-            path.append(canonical);
-        }
-        return path.toString();
+        return new RubyInstallation[0];
     }
 
-    private static FilePath getGlobal(String name, FilePath gemsPath)
-            throws InterruptedException, IOException {
-        RvmGlobalFilter globalFilter = new RvmGlobalFilter(name);
-        List<FilePath> globalGems = gemsPath.list(globalFilter);
-        FilePath global = null;
-        if (!globalGems.isEmpty()) {
-            global = globalGems.get(0);
+    private static class RvmScan implements FileCallable<RubyInstallation[]> {
+        public RubyInstallation[] invoke(File f, VirtualChannel channel) throws IOException {
+            return new RvmScanner(new Rvm(f.getPath())).scan();
         }
-        return global;
-    }
 
-    private static FilePath getSpecifications(FilePath candidate)
-            throws InterruptedException, IOException {
-        FilePath specification = candidate.child("specifications");
-        if (specification.exists()) {
-            return specification;
-        }
-        return null;
-    }
-
-    private static class RvmFilenameFilter implements FileFilter, Serializable {
-        private final String name;
-
-        public RvmFilenameFilter(String name) {
-            this.name = name;
-        }
-
-        public boolean accept(File pathname) {
-            return pathname.getName().startsWith(this.name)
-                && !pathname.getName().endsWith("@");
-        }
+        private static final long serialVersionUID = 1L;
     }
-
-    private static class RvmGlobalFilter implements FileFilter, Serializable {
-        private final String name;
-
-        public RvmGlobalFilter(String name) {
-            this.name = name;
-        }
-
-        public boolean accept(File pathname) {
-            return pathname.getName().startsWith(this.name)
-                && pathname.getName().endsWith("@global");
-        }
-    }
-
-    private static class RakeSpecFilter implements FileFilter, Serializable {
-        private final Pattern rakePattern = Pattern.compile("rake\\-([\\d.]+).gemspec");
-        public boolean accept(File pathname) {
-            return rakePattern.matcher(pathname.getName()).matches();
-        }
-    }
-
-    private static FileFilter rakeFilter = new RakeSpecFilter();
 }
@@ -0,0 +1,138 @@
+package hudson.plugins.rake;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Prerequisite graph of a Rakefile, in the format of <code>rake -P</code> with the full names
+ * of the prerequisites, followed by the <code>file path</code> lines of the files the graph was
+ * read from. Graphs are cached by location, along with the digest of those files.
+ */
+final class TaskGraph {
+
+    private static final int CACHE_SIZE = 64;
+
+    private static final Map<String, TaskGraph> cache = Collections.synchronizedMap(
+        new LinkedHashMap<String, TaskGraph>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, TaskGraph> eldest) {
+                return size() > CACHE_SIZE;
+            }
+        });
+
+    private final Map<String, List<String>> prerequisites;
+    private final List<String> sources;
+    private volatile String digest;
+
+    private TaskGraph(Map<String, List<String>> prerequisites, List<String> sources) {
+        this.prerequisites = prerequisites;
+        this.sources = sources;
+    }
+
+    static TaskGraph getCached(String location) {
+        return cache.get(location);
+    }
+
+    static void cache(String location, String digest, TaskGraph graph) {
+        graph.digest = digest;
+        cache.put(location, graph);
+    }
+
+    /**
+     * The digest of the files the graph was read from when it was cached.
+     */
+    String getDigest() {
+        return digest;
+    }
+
+    /**
+     * Parses the graph: every task is printed on a <code>rake name</code> line followed by its
+     * indented prerequisites, and every file the graph was read from on a <code>file path</code> line.
+     */
+    static TaskGraph parse(String output) {
+        Map<String, List<String>> prerequisites = new LinkedHashMap<String, List<String>>();
+        List<String> sources = new ArrayList<String>();
+        List<String> current = null;
+        for (String line : output.split("\r?\n")) {
+            if (line.startsWith("rake ")) {
+                current = new ArrayList<String>();
+                prerequisites.put(line.substring("rake ".length()).trim(), current);
+            } else if (line.startsWith("file ")) {
+                current = null;
+                sources.add(line.substring("file ".length()).trim());
+            } else if (current != null && line.length() > 0 && Character.isWhitespace(line.charAt(0))
+                    && line.trim().length() > 0) {
+                current.add(line.trim());
+            }
+        }
+        return new TaskGraph(prerequisites, sources);
+    }
+
+    /**
+     * The Rakefile, the files it imports and the project files it requires.
+     */
+    List<String> getSources() {
+        return sources;
+    }
+
+    boolean contains(String task) {
+        return prerequisites.containsKey(task);
+    }
+
+    /**
+     * Prerequisites of a task that are tasks of the graph; the other ones are files.
+     */
+    List<String> getTaskPrerequisites(String task) {
+        List<String> tasks = new ArrayList<String>();
+        List<String> prereqs = prerequisites.get(task);
+        if (prereqs != null) {
+            for (String prereq : prereqs) {
+                if (prerequisites.containsKey(prereq)) {
+                    tasks.add(prereq);
+                }
+            }
+        }
+        return tasks;
+    }
+
+    /**
+     * The requested tasks and all the tasks they depend on, prerequisites first.
+     */
+    Set<String> closure(Collection<String> requested) {
+        Set<String> closure = new LinkedHashSet<String>();
+        for (String task : requested) {
+            visit(task, closure, new LinkedHashSet<String>());
+        }
+        return closure;
+    }
+
+    private void visit(String task, Set<String> closure, Set<String> path) {
+        if (closure.contains(task) || !path.add(task)) {
+            return;
+        }
+        for (String prereq : getTaskPrerequisites(task)) {
+            visit(prereq, closure, path);
+        }
+        path.remove(task);
+        closure.add(task);
+    }
+
+    /**
+     * Tasks of the closure that are neither done nor started and whose prerequisites are all done.
+     */
+    List<String> ready(Set<String> closure, Set<String> started, Set<String> done) {
+        List<String> ready = new ArrayList<String>();
+        for (String task : closure) {
+            if (!started.contains(task) && done.containsAll(getTaskPrerequisites(task))) {
+                ready.add(task);
+            }
+        }
+        return ready;
+    }
+}
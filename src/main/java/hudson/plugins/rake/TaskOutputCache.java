@@ -0,0 +1,352 @@
+package hudson.plugins.rake;
+
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.FilePath.TarCompression;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.tools.ant.types.FileSet;
+import org.apache.tools.tar.TarConstants;
+import org.apache.tools.tar.TarEntry;
+import org.apache.tools.tar.TarInputStream;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Content addressed store of the outputs of cacheable rake tasks. The key of a task is the
+ * SHA-256 of its name, the identity of the ruby installation and the fingerprint of its declared
+ * inputs; its declared output directories are stored as a gzipped tar archive. The store is a
+ * directory every node can reach, such as a shared mount, or an HTTP server accepting
+ * <code>GET</code> and <code>PUT</code> requests, so a build on any node can restore the outputs.
+ */
+public class TaskOutputCache implements Serializable {
+
+    private final String location;
+
+    @DataBoundConstructor
+    public TaskOutputCache(String location) {
+        this.location = location != null ? location.trim() : "";
+    }
+
+    /**
+     * Directory path or HTTP base URL of the store.
+     */
+    public String getLocation() {
+        return location;
+    }
+
+    boolean isEnabled() {
+        return location.length() > 0;
+    }
+
+    /**
+     * Parses the cacheable task declarations, one <code>task | input globs | output directories</code> per line.
+     */
+    static List<CacheableTask> parse(String declarations) {
+        List<CacheableTask> tasks = new ArrayList<CacheableTask>();
+        if (declarations != null) {
+            for (String line : declarations.split("[\r\n]+")) {
+                String[] parts = line.split("\\|");
+                if (parts.length == 3 && parts[0].trim().length() > 0 && parts[2].trim().length() > 0) {
+                    tasks.add(new CacheableTask(parts[0].trim(), parts[1].trim(), parts[2].trim()));
+                }
+            }
+        }
+        return tasks;
+    }
+
+    /**
+     * Restores the outputs of a task if the store has them. An archive that can't be restored is
+     * a miss, and the outputs it partly restored are removed. So is an archive with an entry outside
+     * the declared outputs of the task, or with a link, as the store may be writable by others.
+     */
+    Restoration restore(FilePath workingDir, CacheableTask task, String rubyIdentity) throws IOException, InterruptedException {
+        return workingDir.act(new Restore(location, task, rubyIdentity));
+    }
+
+    /**
+     * Stores the outputs of a task under its key.
+     * @return <code>false</code> when the task has no outputs, which are not stored then.
+     */
+    boolean store(FilePath workingDir, CacheableTask task, String key) throws IOException, InterruptedException {
+        return workingDir.act(new Store(location, task, key));
+    }
+
+    /**
+     * The outcome of a restore.
+     */
+    static final class Restoration implements Serializable {
+        private final String key;
+        private final boolean restored;
+        private final String failure;
+
+        Restoration(String key, boolean restored, String failure) {
+            this.key = key;
+            this.restored = restored;
+            this.failure = failure;
+        }
+
+        /**
+         * The key the outputs of the task are stored under.
+         */
+        String getKey() {
+            return key;
+        }
+
+        boolean isRestored() {
+            return restored;
+        }
+
+        /**
+         * Why the archive of the task couldn't be restored, <code>null</code> if it was restored or missing.
+         */
+        String getFailure() {
+            return failure;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * A task whose outputs only depend on its inputs.
+     */
+    static final class CacheableTask implements Serializable {
+        private final String name;
+        private final String inputs;
+        private final String outputs;
+
+        CacheableTask(String name, String inputs, String outputs) {
+            this.name = name;
+            this.inputs = inputs;
+            this.outputs = outputs;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        String[] getOutputs() {
+            return outputs.split("\\s*,\\s*");
+        }
+
+        String getOutputGlob() {
+            StringBuilder glob = new StringBuilder();
+            for (String output : getOutputs()) {
+                if (glob.length() > 0) {
+                    glob.append(',');
+                }
+                glob.append(output).append("/**");
+            }
+            return glob.toString();
+        }
+
+        String key(File dir, String rubyIdentity) throws IOException, InterruptedException {
+            String fingerprint = inputs.length() > 0 ? new InputFingerprint(inputs).invoke(dir, null) : "";
+            MessageDigest sha;
+            try {
+                sha = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e.getMessage());
+            }
+            sha.update((name + "\0" + rubyIdentity + "\0" + fingerprint).getBytes("UTF-8"));
+            return hudson.Util.toHexString(sha.digest());
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static boolean isHttp(String location) {
+        return location.startsWith("http://") || location.startsWith("https://");
+    }
+
+    private static String archiveName(String key) {
+        return key + ".tgz";
+    }
+
+    /**
+     * Extracts the archive after checking each entry is a plain file or directory within the outputs.
+     */
+    static void extract(InputStream in, File dir, String[] outputs) throws IOException {
+        TarInputStream tar = new TarInputStream(TarCompression.GZIP.extract(in));
+        TarEntry entry;
+        while ((entry = tar.getNextEntry()) != null) {
+            String name = entry.getName();
+            if (entry.isDirectory()) {
+                if (!isWithin(name, outputs, true)) {
+                    throw new IOException("Archive entry " + name + " is outside of the outputs of the task");
+                }
+                new File(dir, name).mkdirs();
+                continue;
+            }
+            if (entry.getLinkFlag() != TarConstants.LF_NORMAL && entry.getLinkFlag() != TarConstants.LF_OLDNORM) {
+                throw new IOException("Archive entry " + name + " is not a plain file");
+            }
+            if (!isWithin(name, outputs, false)) {
+                throw new IOException("Archive entry " + name + " is outside of the outputs of the task");
+            }
+            File file = new File(dir, name);
+            file.getParentFile().mkdirs();
+            OutputStream out = new FileOutputStream(file);
+            try {
+                IOUtils.copy(tar, out);
+            } finally {
+                out.close();
+            }
+            file.setLastModified(entry.getModTime().getTime());
+            if ((entry.getMode() & 0100) != 0) {
+                file.setExecutable(true);
+            }
+        }
+    }
+
+    /**
+     * Whether a relative entry name is within one of the outputs, or for a directory also one of their parents.
+     */
+    static boolean isWithin(String name, String[] outputs, boolean directory) {
+        String path = name.replace('\\', '/').replaceFirst("^(\\./)+", "");
+        if (path.startsWith("/") || path.matches("^[A-Za-z]:.*")) {
+            return false;
+        }
+        for (String segment : path.split("/")) {
+            if (segment.equals("..")) {
+                return false;
+            }
+        }
+        path = path.replaceAll("/+$", "");
+        for (String output : outputs) {
+            String root = output.replace('\\', '/').replaceAll("/+$", "");
+            if (path.startsWith(root + "/") || (directory && (path.equals(root) || root.startsWith(path + "/")))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final class Restore implements FileCallable<Restoration> {
+        private final String location;
+        private final CacheableTask task;
+        private final String rubyIdentity;
+
+        Restore(String location, CacheableTask task, String rubyIdentity) {
+            this.location = location;
+            this.task = task;
+            this.rubyIdentity = rubyIdentity;
+        }
+
+        public Restoration invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+            String key = task.key(dir, rubyIdentity);
+            FilePath workingDir = new FilePath(dir);
+            try {
+                InputStream in = open(key);
+                if (in == null) {
+                    return new Restoration(key, false, null);
+                }
+                try {
+                    for (String output : task.getOutputs()) {
+                        workingDir.child(output).deleteRecursive();
+                    }
+                    extract(in, dir, task.getOutputs());
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                for (String output : task.getOutputs()) {
+                    workingDir.child(output).deleteRecursive();
+                }
+                return new Restoration(key, false, e.toString());
+            }
+            return new Restoration(key, true, null);
+        }
+
+        private InputStream open(String key) throws IOException {
+            if (isHttp(location)) {
+                HttpURLConnection connection = (HttpURLConnection) new URL(location + "/" + archiveName(key)).openConnection();
+                if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                    connection.disconnect();
+                    return null;
+                }
+                return connection.getInputStream();
+            }
+            try {
+                return new FileInputStream(new File(location, archiveName(key)));
+            } catch (FileNotFoundException e) {
+                return null;
+            }
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final class Store implements FileCallable<Boolean> {
+        private final String location;
+        private final CacheableTask task;
+        private final String key;
+
+        Store(String location, CacheableTask task, String key) {
+            this.location = location;
+            this.task = task;
+            this.key = key;
+        }
+
+        public Boolean invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+            FileSet outputs = hudson.Util.createFileSet(dir, task.getOutputGlob());
+            if (outputs.getDirectoryScanner(new org.apache.tools.ant.Project()).getIncludedFilesCount() == 0) {
+                return false;
+            }
+
+            FilePath workingDir = new FilePath(dir);
+            if (isHttp(location)) {
+                HttpURLConnection connection = (HttpURLConnection) new URL(location + "/" + archiveName(key)).openConnection();
+                connection.setRequestMethod("PUT");
+                connection.setDoOutput(true);
+                connection.setChunkedStreamingMode(8192);
+                OutputStream out = TarCompression.GZIP.compress(connection.getOutputStream());
+                try {
+                    workingDir.tar(out, task.getOutputGlob());
+                } finally {
+                    out.close();
+                }
+                int code = connection.getResponseCode();
+                connection.disconnect();
+                if (code / 100 != 2) {
+                    throw new IOException("Unable to store " + archiveName(key) + " in " + location + ": HTTP " + code);
+                }
+                return true;
+            }
+
+            File store = new File(location);
+            store.mkdirs();
+            File archive = new File(store, archiveName(key));
+            File tmp = File.createTempFile(key, ".tmp", store);
+            OutputStream out = TarCompression.GZIP.compress(new FileOutputStream(tmp));
+            try {
+                workingDir.tar(out, task.getOutputGlob());
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(archive)) {
+                tmp.delete();
+            }
+            return true;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final long serialVersionUID = 1L;
+}
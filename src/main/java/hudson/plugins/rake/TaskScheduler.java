@@ -0,0 +1,278 @@
+package hudson.plugins.rake;
+
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.model.Computer;
+import hudson.remoting.VirtualChannel;
+import hudson.util.ArgumentListBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the requested tasks and their prerequisites as a fork-join over the Rakefile's
+ * prerequisite graph: every task is its own rake process, started as soon as its prerequisites
+ * are done, with at most one process per core of the node.
+ */
+final class TaskScheduler {
+
+    static final String SCHEDULED_ENV = "JENKINS_RAKE_SCHEDULED";
+
+    /**
+     * Drops the prerequisites the scheduler runs itself once the Rakefile is loaded, so a task
+     * process doesn't run them again. Prerequisites are resolved in the namespace of their task.
+     */
+    static final String SKIP_SCHEDULED_PREREQUISITES =
+        "scheduled = ENV['" + SCHEDULED_ENV + "'].to_s.split(',');"
+        + " (class << Rake.application; self; end).class_eval do"
+        + " alias_method :jenkins_load_rakefile, :load_rakefile;"
+        + " define_method(:load_rakefile) do"
+        + " jenkins_load_rakefile;"
+        + " Rake::Task.tasks.each { |t| t.prerequisites.reject! { |p|"
+        + " d = lookup(p, t.scope); scheduled.include?(d ? d.name : p.to_s) } }"
+        + " end"
+        + " end";
+
+    /**
+     * Prints the prerequisite graph once the Rakefile is loaded, with the full names of the
+     * prerequisites, then the files it was read from: the Rakefile, its imports and the project
+     * files it requires.
+     */
+    static final String PRINT_GRAPH =
+        "loaded = [];"
+        + " Rake::DefaultLoader.class_eval do"
+        + " alias_method :jenkins_load, :load;"
+        + " define_method(:load) { |fn| loaded << File.expand_path(fn.to_s); jenkins_load(fn) }"
+        + " end;"
+        + " (class << Rake.application; self; end).class_eval do"
+        + " alias_method :jenkins_load_rakefile, :load_rakefile;"
+        + " define_method(:load_rakefile) do"
+        + " jenkins_load_rakefile;"
+        + " Rake::Task.tasks.each { |t| puts \"rake #{t.name}\";"
+        + " t.prerequisites.each { |p| d = lookup(p, t.scope); puts \"    #{d ? d.name : p}\" } };"
+        + " dir = File.expand_path(original_dir);"
+        + " required = $LOADED_FEATURES.select { |f| f.index(dir) == 0 && !f.include?('/gems/') };"
+        + " ([File.expand_path(rakefile)] + loaded + required).uniq.each { |f| puts \"file #{f}\" };"
+        + " exit(0)"
+        + " end"
+        + " end";
+
+    private static final String[] RAKEFILES = {"rakefile", "Rakefile", "rakefile.rb", "Rakefile.rb"};
+
+    private TaskScheduler() {
+    }
+
+    /**
+     * @return The exit code of the schedule, or <code>null</code> when the tasks can't be
+     *         scheduled and rake has to be invoked as usual.
+     */
+    static Integer run(Launcher launcher, ArgumentListBuilder baseArgs, List<String> tasks, String rakeFile,
+            String rakeLibDir, Map<String, String> env, FilePath workingDir, PrintStream logger)
+            throws IOException, InterruptedException {
+        TaskGraph graph = getGraph(launcher, baseArgs, rakeFile, rakeLibDir, env, workingDir);
+        if (graph == null) {
+            logger.println("Unable to read the prerequisites of the Rakefile, running the tasks serially");
+            return null;
+        }
+        for (String task : tasks) {
+            if (!graph.contains(task)) {
+                logger.println("Task " + task + " is not in the prerequisites graph, running the tasks serially");
+                return null;
+            }
+        }
+
+        Set<String> closure = graph.closure(tasks);
+        int cores = Math.max(1, NodeResources.getCores(launcher));
+
+        StringBuilder scheduled = new StringBuilder();
+        for (String task : closure) {
+            if (scheduled.length() > 0) {
+                scheduled.append(',');
+            }
+            scheduled.append(task);
+        }
+        Map<String, String> taskEnv = new HashMap<String, String>(env);
+        taskEnv.put(SCHEDULED_ENV, scheduled.toString());
+
+        logger.println("Scheduling " + closure.size() + " task(s) on up to " + cores + " process(es)");
+
+        Set<String> started = new HashSet<String>();
+        Set<String> done = new HashSet<String>();
+        CompletionService<Integer> completion = new ExecutorCompletionService<Integer>(Computer.threadPoolForRemoting);
+        Map<Future<Integer>, String> running = new HashMap<Future<Integer>, String>();
+        List<Proc> procs = new ArrayList<Proc>();
+        try {
+            while (done.size() < closure.size()) {
+                for (String task : graph.ready(closure, started, done)) {
+                    if (running.size() >= cores) {
+                        break;
+                    }
+                    ArgumentListBuilder args = baseArgs.clone();
+                    args.add("--execute-continue", SKIP_SCHEDULED_PREREQUISITES);
+                    args.add(task);
+                    started.add(task);
+                    final ParallelTaskGroups.PrefixedOutputStream output =
+                        new ParallelTaskGroups.PrefixedOutputStream("[" + task + "] ", logger);
+                    final Proc proc = launcher.launch().cmds(args)
+                        .envs(taskEnv)
+                        .stdout(output)
+                        .pwd(workingDir).start();
+                    procs.add(proc);
+                    running.put(completion.submit(new Callable<Integer>() {
+                        public Integer call() throws IOException, InterruptedException {
+                            int r = proc.join();
+                            output.close();
+                            return r;
+                        }
+                    }), task);
+                }
+                if (running.isEmpty()) {
+                    logger.println("Circular prerequisites among " + closure + ", running the tasks serially");
+                    return null;
+                }
+
+                Future<Integer> finished = completion.take();
+                String task = running.remove(finished);
+                int r = getExitCode(finished);
+                if (r != 0) {
+                    logger.println("Task " + task + " failed with exit code " + r);
+                    return r;
+                }
+                done.add(task);
+            }
+            return 0;
+        } finally {
+            for (Proc proc : procs) {
+                if (proc.isAlive()) {
+                    proc.kill();
+                }
+            }
+        }
+    }
+
+    private static int getExitCode(Future<Integer> finished) throws IOException, InterruptedException {
+        try {
+            return finished.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof InterruptedException) {
+                throw (InterruptedException) e.getCause();
+            }
+            IOException ioe = new IOException("Unable to wait for a rake task");
+            ioe.initCause(e.getCause());
+            throw ioe;
+        }
+    }
+
+    private static TaskGraph getGraph(Launcher launcher, ArgumentListBuilder baseArgs, String rakeFile,
+            String rakeLibDir, Map<String, String> env, FilePath workingDir) throws IOException, InterruptedException {
+        String location = workingDir.getRemote() + File.pathSeparator + rakeFile + File.pathSeparator + rakeLibDir;
+        TaskGraph graph = TaskGraph.getCached(location);
+        if (graph != null
+                && graph.getDigest().equals(workingDir.act(new RakefileDigest(rakeFile, rakeLibDir, graph.getSources())))) {
+            return graph;
+        }
+
+        ArgumentListBuilder args = baseArgs.clone();
+        args.add("--execute-continue", PRINT_GRAPH);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int r = launcher.launch().cmds(args).envs(env).stdout(out).pwd(workingDir).join();
+        if (r != 0) {
+            return null;
+        }
+        graph = TaskGraph.parse(out.toString());
+        TaskGraph.cache(location, workingDir.act(new RakefileDigest(rakeFile, rakeLibDir, graph.getSources())), graph);
+        return graph;
+    }
+
+    /**
+     * Digest of the Rakefile, of the <code>.rake</code> files of the rake lib directory, which may be
+     * new, and of the files the graph was read from.
+     */
+    private static final class RakefileDigest implements FileCallable<String> {
+        private final String rakeFile;
+        private final String rakeLibDir;
+        private final List<String> sources;
+
+        RakefileDigest(String rakeFile, String rakeLibDir, List<String> sources) {
+            this.rakeFile = rakeFile;
+            this.rakeLibDir = rakeLibDir;
+            this.sources = new ArrayList<String>(sources);
+        }
+
+        public String invoke(File dir, VirtualChannel channel) throws IOException {
+            MessageDigest md5;
+            try {
+                md5 = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e.getMessage());
+            }
+
+            md5.update(dir.getAbsolutePath().getBytes("UTF-8"));
+            if (rakeFile != null && rakeFile.length() > 0) {
+                update(md5, new File(dir, rakeFile));
+            } else {
+                for (String name : RAKEFILES) {
+                    update(md5, new File(dir, name));
+                }
+            }
+
+            File libDir = new File(dir, rakeLibDir != null && rakeLibDir.length() > 0 ? rakeLibDir : "rakelib");
+            String[] libs = libDir.list(new FilenameFilter() {
+                public boolean accept(File dir, String name) {
+                    return name.endsWith(".rake");
+                }
+            });
+            if (libs != null) {
+                Arrays.sort(libs);
+                for (String lib : libs) {
+                    update(md5, new File(libDir, lib));
+                }
+            }
+            for (String source : sources) {
+                File file = new File(source);
+                update(md5, file.isAbsolute() ? file : new File(dir, source));
+            }
+            return hudson.Util.toHexString(md5.digest());
+        }
+
+        private static void update(MessageDigest md5, File file) throws IOException {
+            if (!file.isFile()) {
+                return;
+            }
+            md5.update(file.getPath().getBytes("UTF-8"));
+            InputStream in = new FileInputStream(file);
+            try {
+                byte[] buf = new byte[8192];
+                int len;
+                while ((len = in.read(buf)) >= 0) {
+                    md5.update(buf, 0, len);
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+}
@@ -0,0 +1,64 @@
+package hudson.plugins.rake;
+
+import hudson.console.LineTransformationOutputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Output decorator that picks the task timings printed by {@link #HOOK} out of the rake output,
+ * line by line, records them in a {@link RakeTimingAction} and passes every other line through.
+ */
+final class TaskTimingOutputStream extends LineTransformationOutputStream {
+
+    static final String MARKER = "** Jenkins-Timing ";
+
+    /**
+     * Ruby code given to <code>--execute-continue</code> that prints the duration of every task it executes.
+     */
+    static final String HOOK =
+        "Rake::Task.class_eval do"
+        + " alias_method :jenkins_timed_execute, :execute;"
+        + " define_method(:execute) { |*args|"
+        + " started = Time.now;"
+        + " begin; jenkins_timed_execute(*args);"
+        + " ensure; $stderr.puts \"" + MARKER + "#{((Time.now - started) * 1000).round} #{name}\"; end }"
+        + " end";
+
+    private static final Pattern TIMING = Pattern.compile(Pattern.quote(MARKER) + "(\\d+) (.+?)\\s*$");
+
+    private final OutputStream out;
+    private final RakeTimingAction timings;
+
+    TaskTimingOutputStream(OutputStream out, RakeTimingAction timings) {
+        this.out = out;
+        this.timings = timings;
+    }
+
+    @Override
+    protected synchronized void eol(byte[] b, int len) throws IOException {
+        String line = new String(b, 0, len);
+        int marker = line.indexOf(MARKER);
+        if (marker >= 0) {
+            Matcher m = TIMING.matcher(line.substring(marker));
+            if (m.matches()) {
+                timings.record(m.group(2), Long.parseLong(m.group(1)));
+                return;
+            }
+        }
+        out.write(b, 0, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+        out.flush();
+    }
+}
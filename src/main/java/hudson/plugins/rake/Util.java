@@ -70,8 +70,12 @@ public class Util {
     }
 
     public static boolean isJruby(String path) {
+        return isJruby(path, DiscoveryFiles.DIRECT);
+    }
+
+    static boolean isJruby(String path, DiscoveryFiles files) {
         String execName = isWindows()?"jruby.bat":"jruby";
-        return new File(path, "bin/" + execName).exists();
+        return files.exists(new File(path, "bin/" + execName));
     }
 
     public static boolean isCustom(String path, String execName) {
@@ -89,14 +93,18 @@ public class Util {
     }
 
     public static File[] getGemsDir(String path) {
+        return getGemsDir(path, DiscoveryFiles.DIRECT);
+    }
+
+    static File[] getGemsDir(String path, DiscoveryFiles files) {
         if (path.startsWith("$")) {
             path = System.getenv(path.substring(1));
         }
         File[] gemDirsFiltered = new File[0];
 
         for (File gemsBaseFile : getDefaultGemPaths(path)) {
-            if (gemsBaseFile.exists()) {
-                gemDirsFiltered = gemsBaseFile.listFiles(gemDirFilter);
+            if (files.exists(gemsBaseFile)) {
+                gemDirsFiltered = files.listFiles(gemsBaseFile, gemDirFilter);
                 if (gemDirsFiltered != null && gemDirsFiltered.length > 0) {
                     break;
                 }
@@ -111,9 +119,13 @@ public class Util {
     }
 
     public static boolean isRakeInstalled(File... gemsDirArray) {
+        return isRakeInstalled(DiscoveryFiles.DIRECT, gemsDirArray);
+    }
+
+    static boolean isRakeInstalled(DiscoveryFiles files, File... gemsDirArray) {
         for (File gemsDir : gemsDirArray) {
             File specPath = new File(gemsDir, "specifications");
-            if (specPath.exists() && specPath.listFiles(rakeFilter) != null) {
+            if (files.exists(specPath) && files.listFiles(specPath, rakeFilter) != null) {
                 return true;
             }
         }
@@ -135,10 +147,7 @@ public class Util {
     };
 
     public static Collection<File> getRubyInstallations() throws IOException {
-        String systemPath = System.getenv("PATH");
-        if (systemPath == null) systemPath = System.getenv("path");
-
-        return getRubyInstallations(systemPath);
+        return getRubyInstallations(getSystemPath());
     }
     
     /**
@@ -163,27 +172,51 @@ public class Util {
     }
 
     protected static Collection<File> getRubyInstallations(String systemPath) throws IOException {
+        return getRubyInstallations(systemPath, DiscoveryFiles.DIRECT);
+    }
+
+    static Collection<File> getRubyInstallations(String systemPath, DiscoveryFiles files) throws IOException {
         Collection<File> rubyVersions = new LinkedHashSet<File>();
 
         if (systemPath != null) {
             Set<String> candidates = new LinkedHashSet<String>(Arrays.asList(systemPath.split(File.pathSeparator)));
             for (String path : candidates) {
-                for (String ruby : RUBY_EXECUTABLES) {
-                    File rubyExec = getExecutableWithExceptions(path, ruby);
-                    if (rubyExec.isFile() &&
-                            !rubyVersions.contains(rubyExec.getCanonicalFile().getParentFile())) {
-                        File parent = rubyExec.getCanonicalFile().getParentFile();
-                        File[] gemsDir = getGemsDir(parent.getCanonicalPath());
-
-                        if (!isRakeInstalled(gemsDir) && (isMac() || isJruby(parent.getParent()))) {
-                            parent = parent.getParentFile();
-                            gemsDir = getGemsDir(parent.getAbsolutePath());
-                        }
-
-                        if (gemsDir != null && isRakeInstalled(gemsDir)) {
-                            rubyVersions.add(parent);
-                        }
-                    }
+                rubyVersions.addAll(getRubyInstallationsIn(path, files));
+            }
+        }
+
+        return rubyVersions;
+    }
+
+    /**
+     * Detects the ruby installations whose executables live in a single PATH entry.
+     * @param path One entry of the PATH environment variable.
+     * @return The ruby home directories with rake installed, in discovery order.
+     */
+    protected static Collection<File> getRubyInstallationsIn(String path) throws IOException {
+        return getRubyInstallationsIn(path, DiscoveryFiles.DIRECT);
+    }
+
+    static Collection<File> getRubyInstallationsIn(String path, DiscoveryFiles files) throws IOException {
+        Collection<File> rubyVersions = new LinkedHashSet<File>();
+
+        for (String ruby : RUBY_EXECUTABLES) {
+            File rubyExec = getExecutableWithExceptions(path, ruby, files);
+            if (!files.isFile(rubyExec)) {
+                continue;
+            }
+            // the parent of a canonical file is canonical too
+            File parent = files.getCanonicalFile(rubyExec).getParentFile();
+            if (!rubyVersions.contains(parent)) {
+                File[] gemsDir = getGemsDir(parent.getPath(), files);
+
+                if (!isRakeInstalled(files, gemsDir) && (isMac() || isJruby(parent.getParent(), files))) {
+                    parent = parent.getParentFile();
+                    gemsDir = getGemsDir(parent.getAbsolutePath(), files);
+                }
+
+                if (gemsDir != null && isRakeInstalled(files, gemsDir)) {
+                    rubyVersions.add(parent);
                 }
             }
         }
@@ -191,6 +224,23 @@ public class Util {
         return rubyVersions;
     }
 
+    /**
+     * The ruby executables looked up in every PATH entry.
+     */
+    protected static File[] getRubyExecutables(String path) throws IOException {
+        File[] executables = new File[RUBY_EXECUTABLES.length];
+        for (int i = 0; i < RUBY_EXECUTABLES.length; i++) {
+            executables[i] = getExecutableWithExceptions(path, RUBY_EXECUTABLES[i], DiscoveryFiles.DIRECT);
+        }
+        return executables;
+    }
+
+    public static String getSystemPath() {
+        String systemPath = System.getenv("PATH");
+        if (systemPath == null) systemPath = System.getenv("path");
+        return systemPath;
+    }
+
     public static RubyInstallation[] getCanonicalRubies(RubyInstallation[] currentInstallations) {
       try {
         Collection<File> rubies = getRubyInstallations();
@@ -237,9 +287,9 @@ out:        for (File ruby : candidates) {
         return false;
     }
 
-    private static File getExecutableWithExceptions(String path, String exec) throws IOException {
+    private static File getExecutableWithExceptions(String path, String exec, DiscoveryFiles files) throws IOException {
         File rubyExec = isWindows()?new File(path, exec + ".exe"):new File(path, exec);
-        if (isLinux() && rubyExec.exists() && rubyExec.getAbsolutePath().equals("/usr/bin/ruby")) {
+        if (isLinux() && rubyExec.getAbsolutePath().equals("/usr/bin/ruby") && files.exists(rubyExec)) {
             rubyExec = new File("/usr/lib/ruby/ruby");
         }
         return rubyExec;
@@ -0,0 +1,494 @@
+package hudson.plugins.rake;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.remoting.Callable;
+import hudson.remoting.RemoteOutputStream;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Pool of preloaded ruby processes kept on a node for the warm worker mode.
+ * Workers are keyed by ruby interpreter, gem environment and Gemfile.lock digest, they run
+ * the <code>rake-worker.rb</code> script and receive task invocations over their standard input,
+ * so only the pool can use them. Idle workers are stopped after a timeout, checked every minute,
+ * and the number of live workers on a node is capped.
+ */
+final class WarmWorkerPool {
+
+    private static final Logger LOGGER = Logger.getLogger(WarmWorkerPool.class.getName());
+
+    private static final WarmWorkerPool INSTANCE = new WarmWorkerPool();
+
+    private static final long EVICTION_PERIOD = 60 * 1000;
+
+    /**
+     * How much of the end of the error output of a worker is kept to report why it failed.
+     */
+    private static final int ERROR_TAIL = 4096;
+
+    private final Map<String, LinkedList<Worker>> idle = new HashMap<String, LinkedList<Worker>>();
+    private int size;
+    private long idleMillis;
+    private Timer eviction;
+    private File script;
+
+    private WarmWorkerPool() {
+    }
+
+    /**
+     * Runs rake in a warm worker on the node of the given launcher.
+     * @return The exit code of rake, or <code>null</code> when no worker is available
+     *         and rake has to be launched directly.
+     */
+    static Integer run(Launcher launcher, RubyInstallation rake, boolean bundleExec, List<String> args,
+            Map<String, String> env, FilePath workingDir, WarmWorkers settings, PrintStream logger)
+            throws IOException, InterruptedException {
+        if (!launcher.isUnix()) {
+            return null;
+        }
+        InputStream in = WarmWorkerPool.class.getResourceAsStream("rake-worker.rb");
+        String script;
+        try {
+            script = IOUtils.toString(in);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+
+        return launcher.getChannel().call(new Invocation(rake != null ? rake.getPath() : null, bundleExec,
+            new ArrayList<String>(args), new HashMap<String, String>(env), workingDir.getRemote(),
+            settings, script, new RemoteOutputStream(logger)));
+    }
+
+    private synchronized Worker acquire(String key, WarmWorkers settings) {
+        evict(settings.getIdleMinutes() * 60000L);
+
+        LinkedList<Worker> workers = idle.get(key);
+        while (workers != null && !workers.isEmpty()) {
+            Worker worker = workers.removeFirst();
+            if (worker.isAlive()) {
+                return worker;
+            }
+            size--;
+        }
+        return null;
+    }
+
+    /**
+     * Reserves room for a new worker, stopping the least recently used idle worker when the pool is full.
+     */
+    private synchronized boolean reserve(WarmWorkers settings) {
+        if (size >= settings.getMaxWorkers()) {
+            Worker oldest = null;
+            for (LinkedList<Worker> workers : idle.values()) {
+                for (Worker worker : workers) {
+                    if (oldest == null || worker.lastUsed < oldest.lastUsed) {
+                        oldest = worker;
+                    }
+                }
+            }
+            if (oldest == null) {
+                return false;
+            }
+            idle.get(oldest.key).remove(oldest);
+            oldest.stop();
+            size--;
+        }
+        size++;
+        return true;
+    }
+
+    private synchronized void release(Worker worker, boolean reusable, WarmWorkers settings) {
+        if (reusable && worker.isAlive()) {
+            worker.lastUsed = System.currentTimeMillis();
+            LinkedList<Worker> workers = idle.get(worker.key);
+            if (workers == null) {
+                workers = new LinkedList<Worker>();
+                idle.put(worker.key, workers);
+            }
+            workers.addFirst(worker);
+            scheduleEviction(settings.getIdleMinutes() * 60000L);
+        } else {
+            worker.stop();
+            size--;
+        }
+    }
+
+    /**
+     * Stops the idle workers once they time out, even if no other build comes to use the pool.
+     */
+    private void scheduleEviction(long idleMillis) {
+        this.idleMillis = idleMillis;
+        if (eviction == null) {
+            eviction = new Timer("rake worker eviction", true);
+            eviction.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    synchronized (WarmWorkerPool.this) {
+                        evict(WarmWorkerPool.this.idleMillis);
+                        if (idle.isEmpty()) {
+                            eviction.cancel();
+                            eviction = null;
+                        }
+                    }
+                }
+            }, EVICTION_PERIOD, EVICTION_PERIOD);
+        }
+    }
+
+    private synchronized void unreserve() {
+        size--;
+    }
+
+    private void evict(long idleMillis) {
+        long now = System.currentTimeMillis();
+        for (Iterator<LinkedList<Worker>> it = idle.values().iterator(); it.hasNext();) {
+            LinkedList<Worker> workers = it.next();
+            for (Iterator<Worker> wit = workers.iterator(); wit.hasNext();) {
+                Worker worker = wit.next();
+                if (now - worker.lastUsed > idleMillis || !worker.isAlive()) {
+                    wit.remove();
+                    worker.stop();
+                    size--;
+                }
+            }
+            if (workers.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    private synchronized File getScript(String content) throws IOException {
+        if (script == null || !script.exists() || script.length() != content.length()) {
+            script = File.createTempFile("rake-worker", ".rb");
+            script.deleteOnExit();
+            OutputStream out = new FileOutputStream(script);
+            try {
+                out.write(content.getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+        }
+        return script;
+    }
+
+    /**
+     * A running <code>rake-worker.rb</code> process, which receives invocations on its standard input
+     * and replies on its standard output.
+     */
+    private static final class Worker {
+        private final String key;
+        private final Process process;
+        private final InputStream replies;
+        private final ErrorTail errors;
+        private long lastUsed;
+
+        private Worker(String key, Process process, InputStream replies, ErrorTail errors) {
+            this.key = key;
+            this.process = process;
+            this.replies = replies;
+            this.errors = errors;
+        }
+
+        static Worker start(String key, List<String> command, Map<String, String> env, File dir) throws IOException {
+            ProcessBuilder builder = new ProcessBuilder(command);
+            builder.directory(dir);
+            builder.environment().putAll(env);
+            final Process process = builder.start();
+
+            final InputStream stderr = process.getErrorStream();
+            final ErrorTail errors = new ErrorTail();
+            Thread drainer = new Thread("rake worker output") {
+                @Override
+                public void run() {
+                    byte[] buf = new byte[1024];
+                    int len;
+                    try {
+                        while ((len = stderr.read(buf)) >= 0) {
+                            errors.append(buf, len);
+                        }
+                    } catch (IOException e) {
+                        // the worker is gone
+                    }
+                }
+            };
+            drainer.setDaemon(true);
+            drainer.start();
+
+            InputStream replies = new BufferedInputStream(process.getInputStream());
+            String line = readLine(replies);
+            if (!"ready".equals(line)) {
+                process.destroy();
+                try {
+                    // let the drainer pick up what the worker printed before it died
+                    drainer.join(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new IOException("rake worker failed to start: " + line + errors.describe());
+            }
+            return new Worker(key, process, replies, errors);
+        }
+
+        boolean isAlive() {
+            try {
+                process.exitValue();
+                return false;
+            } catch (IllegalThreadStateException e) {
+                return true;
+            }
+        }
+
+        /**
+         * Stops the worker along with the invocation it's running.
+         */
+        void stop() {
+            process.destroy();
+        }
+
+        int run(String dir, Map<String, String> env, List<String> args, OutputStream out) throws IOException {
+            Writer request = new OutputStreamWriter(process.getOutputStream(), "UTF-8");
+            request.write("dir " + encode(dir) + "\n");
+            for (Map.Entry<String, String> e : env.entrySet()) {
+                request.write("env " + encode(e.getKey() + "=" + e.getValue()) + "\n");
+            }
+            for (String arg : args) {
+                request.write("arg " + encode(arg) + "\n");
+            }
+            request.write("run\n");
+            request.flush();
+
+            try {
+                return copyOutput(replies, out);
+            } catch (IOException e) {
+                IOException ioe = new IOException(e.getMessage() + errors.describe());
+                ioe.initCause(e);
+                throw ioe;
+            }
+        }
+
+        private static String encode(String value) throws IOException {
+            return URLEncoder.encode(value, "UTF-8");
+        }
+    }
+
+    /**
+     * The last {@link #ERROR_TAIL} bytes of the error output of a worker.
+     */
+    static final class ErrorTail {
+        private final byte[] buf = new byte[ERROR_TAIL];
+        private int len;
+
+        synchronized void append(byte[] b, int n) {
+            if (n >= buf.length) {
+                System.arraycopy(b, n - buf.length, buf, 0, buf.length);
+                len = buf.length;
+                return;
+            }
+            int keep = Math.min(len, buf.length - n);
+            System.arraycopy(buf, len - keep, buf, 0, keep);
+            System.arraycopy(b, 0, buf, keep, n);
+            len = keep + n;
+        }
+
+        /**
+         * The kept error output to append to a failure message, empty when there is none.
+         */
+        synchronized String describe() {
+            if (len == 0) {
+                return "";
+            }
+            return "\nrake worker error output:\n" + new String(buf, 0, len);
+        }
+    }
+
+    /**
+     * Copies the output replied for an invocation, made of <code>out &lt;length&gt;</code> lines each
+     * followed by that many bytes, and returns the status of the <code>exit &lt;status&gt;</code> line
+     * that ends it.
+     */
+    static int copyOutput(InputStream in, OutputStream out) throws IOException {
+        byte[] buf = new byte[8192];
+        while (true) {
+            String line = readLine(in);
+            if (line == null) {
+                throw new IOException("rake worker terminated without an exit status");
+            }
+            if (line.startsWith("out ")) {
+                int remaining = Integer.parseInt(line.substring("out ".length()).trim());
+                while (remaining > 0) {
+                    int len = in.read(buf, 0, Math.min(buf.length, remaining));
+                    if (len < 0) {
+                        throw new IOException("rake worker terminated in the middle of its output");
+                    }
+                    out.write(buf, 0, len);
+                    remaining -= len;
+                }
+            } else if (line.startsWith("exit ")) {
+                out.flush();
+                return Integer.parseInt(line.substring("exit ".length()).trim());
+            } else {
+                throw new IOException("Unexpected reply from the rake worker: " + line);
+            }
+        }
+    }
+
+    /**
+     * A reply line of the worker, <code>null</code> at the end of the replies.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) >= 0 && b != '\n') {
+            line.write(b);
+        }
+        if (b < 0 && line.size() == 0) {
+            return null;
+        }
+        return line.toString("US-ASCII");
+    }
+
+    /**
+     * Runs on the node: finds or starts a worker for the invocation and hands the task to it.
+     */
+    private static final class Invocation implements Callable<Integer, IOException> {
+        private final String rubyHome;
+        private final boolean bundleExec;
+        private final List<String> args;
+        private final Map<String, String> env;
+        private final String workingDir;
+        private final WarmWorkers settings;
+        private final String script;
+        private final OutputStream out;
+
+        Invocation(String rubyHome, boolean bundleExec, List<String> args, Map<String, String> env,
+                String workingDir, WarmWorkers settings, String script, OutputStream out) {
+            this.rubyHome = rubyHome;
+            this.bundleExec = bundleExec;
+            this.args = args;
+            this.env = env;
+            this.workingDir = workingDir;
+            this.settings = settings;
+            this.script = script;
+            this.out = out;
+        }
+
+        public Integer call() throws IOException {
+            String ruby = null;
+            if (rubyHome != null) {
+                // JRuby can't fork, so it always runs cold
+                if (Util.isJruby(rubyHome)) {
+                    return null;
+                }
+                File candidate = new File(rubyHome, "bin/ruby");
+                if (candidate.isFile()) {
+                    ruby = candidate.getPath();
+                }
+            }
+            if (ruby == null) {
+                String path = env.get("PATH");
+                ruby = path != null ? Util.findInPath("ruby", path, File.pathSeparator) : "ruby";
+            }
+
+            Map<String, String> workerEnv = new HashMap<String, String>(env);
+            String lockDigest = "";
+            if (bundleExec) {
+                String gemfile = env.get("BUNDLE_GEMFILE");
+                if (gemfile == null) {
+                    gemfile = new File(workingDir, "Gemfile").getAbsolutePath();
+                }
+                workerEnv.put("BUNDLE_GEMFILE", gemfile);
+                File lock = new File(gemfile + ".lock");
+                lockDigest = gemfile + "@" + (lock.exists() ? digest(lock) : "");
+            }
+            String key = ruby + "|" + env.get("GEM_HOME") + "|" + env.get("GEM_PATH") + "|" + lockDigest;
+
+            WarmWorkerPool pool = INSTANCE;
+            Worker worker = pool.acquire(key, settings);
+            if (worker == null) {
+                if (!pool.reserve(settings)) {
+                    return null;
+                }
+                try {
+                    List<String> command = new ArrayList<String>();
+                    command.add(ruby);
+                    command.add(pool.getScript(script).getPath());
+                    worker = Worker.start(key, command, workerEnv, new File(workingDir));
+                } catch (IOException e) {
+                    pool.unreserve();
+                    LOGGER.log(Level.WARNING, "Unable to start a rake worker with " + ruby, e);
+                    return null;
+                }
+            }
+
+            // the invocation runs on its own thread, so aborting the build stops it instead of
+            // waiting for the output of rake
+            final Worker invoked = worker;
+            FutureTask<Integer> invocation = new FutureTask<Integer>(new java.util.concurrent.Callable<Integer>() {
+                public Integer call() throws IOException {
+                    return invoked.run(workingDir, env, args, out);
+                }
+            });
+            Thread thread = new Thread(invocation, "rake worker invocation");
+            thread.setDaemon(true);
+            thread.start();
+
+            boolean reusable = false;
+            try {
+                int status = invocation.get();
+                reusable = true;
+                return status;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("rake was aborted");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                IOException ioe = new IOException("rake worker invocation failed");
+                ioe.initCause(e.getCause());
+                throw ioe;
+            } finally {
+                pool.release(worker, reusable, settings);
+                out.flush();
+            }
+        }
+
+        private static String digest(File file) throws IOException {
+            InputStream in = new FileInputStream(file);
+            try {
+                return hudson.Util.getDigestOf(in);
+            } finally {
+                in.close();
+            }
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+}
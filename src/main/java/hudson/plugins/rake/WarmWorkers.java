@@ -0,0 +1,38 @@
+package hudson.plugins.rake;
+
+import java.io.Serializable;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Global settings of the warm rake worker pools kept on every node.
+ */
+public class WarmWorkers implements Serializable {
+    public static final int DEFAULT_MAX_WORKERS = 2;
+    public static final int DEFAULT_IDLE_MINUTES = 10;
+
+    private final int maxWorkers;
+    private final int idleMinutes;
+
+    @DataBoundConstructor
+    public WarmWorkers(int maxWorkers, int idleMinutes) {
+        this.maxWorkers = maxWorkers > 0 ? maxWorkers : DEFAULT_MAX_WORKERS;
+        this.idleMinutes = idleMinutes > 0 ? idleMinutes : DEFAULT_IDLE_MINUTES;
+    }
+
+    /**
+     * Maximum number of live workers on a node, idle or busy.
+     */
+    public int getMaxWorkers() {
+        return maxWorkers;
+    }
+
+    /**
+     * Minutes an idle worker is kept before it's stopped.
+     */
+    public int getIdleMinutes() {
+        return idleMinutes;
+    }
+
+    private static final long serialVersionUID = 1L;
+}
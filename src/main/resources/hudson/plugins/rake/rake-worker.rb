@@ -0,0 +1,113 @@
+# Preloaded rake worker used by the warm worker mode of the Jenkins rake plugin.
+#
+# The worker only talks to the plugin process that started it, over its standard input
+# and output, so no other process can send it invocations. Both are set aside before
+# anything is loaded: standard input is replaced by /dev/null and standard output by
+# standard error, so whatever rubygems, bundler or rake print can't get mixed with the
+# replies.
+#
+# The worker loads rubygems, bundler (when BUNDLE_GEMFILE is set) and rake once, replies
+# "ready" and then forks a child for every invocation it receives, so the child starts
+# with an interpreter that is already booted.
+#
+# Requests are lines of "<type> <url encoded value>" ended by a "run" line:
+#   dir  the working directory
+#   env  a NAME=value environment variable, the child gets exactly the variables of the
+#        request, plus those set by bundler when the worker booted, so nothing is left
+#        over from the build that started the worker
+#   arg  a rake argument
+# The output of the child is replied as "out <length>" lines, each followed by that many
+# bytes of output, then an "exit <status>" line.
+requests = $stdin.dup
+replies = $stdout.dup
+$stdin.reopen('/dev/null')
+$stdout.reopen($stderr)
+replies.binmode
+replies.sync = true
+
+require 'cgi'
+boot_env = ENV.to_hash
+require 'rubygems'
+require 'bundler/setup' if ENV['BUNDLE_GEMFILE']
+require 'rake'
+loaded_env = ENV.to_hash.reject { |name, val| boot_env[name] == val }
+
+def reply_output(replies, data)
+  replies.write("out #{data.bytesize}\n")
+  replies.write(data)
+end
+
+# the plugin stops the worker when the build is aborted, the running invocation goes with it
+child = nil
+trap('TERM') do
+  Process.kill('KILL', -child) rescue nil if child
+  exit!(1)
+end
+
+loop do
+  dir = nil
+  env = {}
+  args = []
+  run = false
+  while (line = requests.gets)
+    type, value = line.chomp.split(' ', 2)
+    if type == 'run'
+      run = true
+      break
+    end
+    value = CGI.unescape(value.to_s)
+    case type
+    when 'dir'
+      dir = value
+    when 'env'
+      name, val = value.split('=', 2)
+      env[name] = val.to_s
+    when 'arg'
+      args << value
+    end
+  end
+  # the plugin closed the requests, it's gone
+  exit!(0) unless run
+
+  reader, writer = IO.pipe
+  child = fork do
+    trap('TERM', 'DEFAULT')
+    Process.setpgid(0, 0)
+    reader.close
+    requests.close
+    replies.close
+    $stdout.reopen(writer)
+    $stderr.reopen(writer)
+    writer.close
+    $stdout.sync = true
+    $stderr.sync = true
+    ENV.replace(env.merge(loaded_env))
+    Dir.chdir(dir) if dir
+    ARGV.replace(args)
+    Rake.application.run
+  end
+  writer.close
+
+  status = nil
+  loop do
+    if IO.select([reader], nil, nil, 0.1)
+      begin
+        reply_output(replies, reader.readpartial(8192))
+      rescue EOFError
+        break
+      end
+    elsif (status = Process.waitpid2(child, Process::WNOHANG))
+      # processes started by rake may keep the output open, rake itself is done
+      begin
+        loop { reply_output(replies, reader.read_nonblock(8192)) }
+      rescue EOFError, Errno::EAGAIN
+      end
+      break
+    end
+  end
+  status ||= Process.waitpid2(child)
+  child = nil
+  reader.close
+
+  replies.write("exit #{status[1].exitstatus || 1}\n")
+end
@@ -0,0 +1,203 @@
+package hudson.plugins.rake;
+
+import hudson.model.TaskListener;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fake ruby installations on disk, made of shell stubs and empty gemspecs, for the tests and
+ * benchmarks that exercise discovery without a real ruby.
+ */
+final class FakeRubyTree {
+
+    private static final String STUB = "#!/bin/sh\nexit 0\n";
+
+    private final File root;
+    private final List<File> pathDirs = new ArrayList<File>();
+    private final List<File> pathRubies = new ArrayList<File>();
+
+    private FakeRubyTree(File root) {
+        this.root = root;
+    }
+
+    static FakeRubyTree create() throws IOException {
+        File root = File.createTempFile("fake-ruby", "").getCanonicalFile();
+        root.delete();
+        root.mkdirs();
+        return new FakeRubyTree(root);
+    }
+
+    File getRoot() {
+        return root;
+    }
+
+    Rvm getRvm() {
+        return new Rvm(new File(root, "rvm").getPath());
+    }
+
+    /**
+     * Adds a ruby to the RVM tree.
+     */
+    File addRvmRuby(String name) throws IOException {
+        File ruby = new File(root, "rvm/rubies/" + name);
+        stub(new File(ruby, "bin/ruby"));
+        return ruby;
+    }
+
+    /**
+     * Adds a gemset to the RVM tree, <code>name</code> being either a ruby or a <code>ruby@gemset</code>.
+     */
+    File addGemset(String name, boolean rake) throws IOException {
+        File gemset = new File(root, "rvm/gems/" + name);
+        File specifications = new File(gemset, "specifications");
+        specifications.mkdirs();
+        if (rake) {
+            stub(new File(gemset, "bin/rake"));
+            new File(specifications, "rake-0.9.2.gemspec").createNewFile();
+        }
+        return gemset;
+    }
+
+    /**
+     * Adds a gemset reached through a chain of <code>links</code> symbolic links, the way RVM
+     * aliases a ruby to its patch level.
+     */
+    File addLinkedGemset(String name, String target, int links) throws InterruptedException {
+        File gems = new File(root, "rvm/gems");
+        String previous = target;
+        for (int i = links - 1; i > 0; i--) {
+            String link = name + ".link" + i;
+            hudson.Util.createSymlink(gems, previous, link, TaskListener.NULL);
+            previous = link;
+        }
+        hudson.Util.createSymlink(gems, previous, name, TaskListener.NULL);
+        return new File(gems, name);
+    }
+
+    /**
+     * Fills the RVM tree with <code>rubies</code> rubies of <code>gemsets</code> gemsets each,
+     * besides their default and global gemsets. Every gemset but every third one carries
+     * <code>specs</code> gemspecs, one of them rake's, and every tenth gemset is an alias made of
+     * <code>links</code> symbolic links to the previous one.
+     */
+    FakeRubyTree populateRvm(int rubies, int gemsets, int specs, int links)
+            throws IOException, InterruptedException {
+        for (int r = 0; r < rubies; r++) {
+            String ruby = "ruby-1." + r + ".0";
+            addRvmRuby(ruby);
+            addGemset(ruby, true);
+            addGemset(ruby + "@global", true);
+            for (int g = 0; g < gemsets; g++) {
+                String name = ruby + "@set" + g;
+                if (links > 0 && g > 0 && g % 10 == 0 && !Util.isWindows()) {
+                    addLinkedGemset(name, ruby + "@set" + (g - 1), links);
+                    continue;
+                }
+                File gemset = addGemset(name, g % 3 != 0);
+                for (int i = 1; i < specs; i++) {
+                    new File(gemset, "specifications/gem" + i + "-1.0.gemspec").createNewFile();
+                }
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Fills the PATH with <code>dirs</code> entries, <code>rubies</code> of them being ruby
+     * installations, every second one with rake. Each ruby is listed twice, once through a chain
+     * of <code>links</code> symbolic links.
+     */
+    FakeRubyTree populatePath(int dirs, int rubies, int links) throws IOException, InterruptedException {
+        int step = Math.max(1, dirs / Math.max(1, rubies));
+        for (int i = 0, r = 0; i < dirs; i++) {
+            if (r < rubies && i % step == 0) {
+                File home = addPathRuby("ruby" + r, r % 2 == 0);
+                if (links > 0 && !Util.isWindows()) {
+                    String previous = home.getName();
+                    for (int l = 1; l <= links; l++) {
+                        String link = home.getName() + "-link" + l;
+                        hudson.Util.createSymlink(home.getParentFile(), previous, link, TaskListener.NULL);
+                        previous = link;
+                    }
+                    pathDirs.add(new File(home.getParentFile(), previous + "/bin"));
+                }
+                r++;
+            } else {
+                addPathDir("dir" + i);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Adds a ruby installation whose <code>bin</code> directory is part of the PATH.
+     * It carries a <code>jruby</code> stub, so discovery looks for its gems in the installation
+     * directory on every platform.
+     */
+    File addPathRuby(String name, boolean rake) throws IOException {
+        File home = new File(root, "path/" + name);
+        File bin = new File(home, "bin");
+        stub(new File(bin, "ruby"));
+        stub(new File(bin, "jruby"));
+        stub(new File(bin, "rake"));
+        File specifications = new File(home, "lib/ruby/gems/1.8/specifications");
+        specifications.mkdirs();
+        if (rake) {
+            new File(specifications, "rake-0.9.2.gemspec").createNewFile();
+        }
+        pathRubies.add(home);
+        pathDirs.add(bin);
+        return home;
+    }
+
+    /**
+     * Adds a PATH entry without any ruby.
+     */
+    File addPathDir(String name) {
+        File dir = new File(root, "path/" + name);
+        dir.mkdirs();
+        pathDirs.add(dir);
+        return dir;
+    }
+
+    /**
+     * The PATH made of every PATH entry added so far.
+     */
+    String getPath() {
+        StringBuilder path = new StringBuilder();
+        for (File dir : pathDirs) {
+            if (path.length() > 0) {
+                path.append(File.pathSeparator);
+            }
+            path.append(dir.getPath());
+        }
+        return path.toString();
+    }
+
+    /**
+     * The homes of the PATH rubies, in PATH order. Discovery finds them all, with or without
+     * rake, as it only checks that their gems have a specifications directory.
+     */
+    List<File> getPathRubies() {
+        return pathRubies;
+    }
+
+    void delete() throws IOException {
+        hudson.Util.deleteRecursive(root);
+    }
+
+    private static void stub(File file) throws IOException {
+        file.getParentFile().mkdirs();
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(STUB);
+        } finally {
+            writer.close();
+        }
+        file.setExecutable(true);
+    }
+}
@@ -0,0 +1,111 @@
+package hudson.plugins.rake;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestBoundedConsole {
+
+    private ByteArrayOutputStream console;
+    private ByteArrayOutputStream archive;
+
+    @Before
+    public void setUp() {
+        console = new ByteArrayOutputStream();
+        archive = new ByteArrayOutputStream();
+    }
+
+    @Test
+    public void testCollapsesProgressLines() throws IOException {
+        BoundedConsole bounded = new BoundedConsole(console, archive, 1024 * 1024, 1024, 0);
+        write(bounded, "Running specs\n");
+        for (int i = 0; i <= 100; i += 10) {
+            write(bounded, "Progress " + i + "%\n");
+        }
+        write(bounded, "working\r50%\r100%\n");
+        write(bounded, "Done\n");
+        bounded.close();
+
+        assertEquals("Running specs\nProgress 0%\n    (10 similar line(s) collapsed)\n100%\nDone\n", console.toString());
+    }
+
+    @Test
+    public void testKeepsHeadAndTail() throws IOException {
+        BoundedConsole bounded = new BoundedConsole(console, archive, 100, 60, Long.MAX_VALUE);
+        StringBuilder raw = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            String line = "line " + (char) ('a' + i % 26) + i + " " + (char) ('a' + i % 26) + "\n";
+            raw.append(line);
+            write(bounded, line);
+        }
+        bounded.close();
+        String output = console.toString();
+
+        assertTrue(output, output.startsWith("line a0 a\nline b1 b\n"));
+        assertTrue(output, output.contains(" omitted, last "));
+        assertTrue(output, output.endsWith("line v99 v\n"));
+        assertFalse(output, output.contains("line z51 z\n"));
+        assertTrue(output.length() < raw.length());
+
+        assertEquals(raw.toString(), gunzip(archive.toByteArray()));
+    }
+
+    @Test
+    public void testKeepsTaskTimings() throws IOException {
+        RakeTimingAction timings = new RakeTimingAction();
+        TaskTimingOutputStream out = new TaskTimingOutputStream(new ByteArrayOutputStream(), timings);
+        BoundedConsole bounded = new BoundedConsole(out, archive, 50, 100, Long.MAX_VALUE);
+        for (int i = 0; i < 100; i++) {
+            write(bounded, "step " + (char) ('a' + i % 26) + "\n");
+            if (i == 40) {
+                write(bounded, "** Jenkins-Timing 100 spec:unit\n");
+            }
+        }
+        write(bounded, "** Jenkins-Timing 300 spec:integration\n");
+        bounded.close();
+        out.close();
+
+        assertEquals(Long.valueOf(100), timings.getDuration("spec:unit"));
+        assertEquals(Long.valueOf(300), timings.getDuration("spec:integration"));
+    }
+
+    @Test
+    public void testWaitsForCompleteLines() throws IOException {
+        BoundedConsole bounded = new BoundedConsole(console, archive, 1024, 1024, 0);
+        write(bounded, "first\nsec");
+        assertEquals("first\n", console.toString());
+
+        write(bounded, "ond\nthird");
+        assertEquals("first\nsecond\n", console.toString());
+
+        bounded.close();
+        assertEquals("first\nsecond\nthird\n", console.toString());
+        assertEquals("first\nsecond\nthird", gunzip(archive.toByteArray()));
+    }
+
+    private static void write(BoundedConsole bounded, String text) throws IOException {
+        bounded.write(text.getBytes());
+    }
+
+    private static String gunzip(byte[] compressed) throws IOException {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed));
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int len;
+            while ((len = in.read(buf)) >= 0) {
+                out.write(buf, 0, len);
+            }
+            return out.toString();
+        } finally {
+            in.close();
+        }
+    }
+}
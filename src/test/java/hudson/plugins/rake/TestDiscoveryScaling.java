@@ -0,0 +1,245 @@
+package hudson.plugins.rake;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Checks that the file system calls of discovery grow linearly with the number of gemsets and
+ * PATH entries, and that discovery finds what the original per-ruby RVM scan found.
+ */
+public class TestDiscoveryScaling {
+
+    private static final long CALLS_PER_ENTRY = 6;
+    private static final long FIXED_CALLS = 50;
+
+    private FakeRubyTree tree;
+
+    @After
+    public void tearDown() throws IOException {
+        if (tree != null) {
+            tree.delete();
+        }
+    }
+
+    @Test
+    public void testRvmScanWith10Gemsets() throws Exception {
+        assertRvmScanScales(10);
+    }
+
+    @Test
+    public void testRvmScanWith100Gemsets() throws Exception {
+        assertRvmScanScales(100);
+    }
+
+    @Test
+    public void testRvmScanWith1000Gemsets() throws Exception {
+        assertRvmScanScales(1000);
+    }
+
+    @Test
+    public void testPathScanWith10Entries() throws Exception {
+        assertPathScanScales(10);
+    }
+
+    @Test
+    public void testPathScanWith100Entries() throws Exception {
+        assertPathScanScales(100);
+    }
+
+    @Test
+    public void testPathScanWith1000Entries() throws Exception {
+        assertPathScanScales(1000);
+    }
+
+    private void assertRvmScanScales(int gemsets) throws Exception {
+        if (Util.isWindows()) return;
+
+        tree = FakeRubyTree.create().populateRvm(2, gemsets / 2, 3, 3);
+        Rvm rvm = tree.getRvm();
+
+        CountingFiles files = new CountingFiles();
+        RubyInstallation[] rubies = new RvmScanner(rvm, files).scan();
+
+        assertEquals(describe(referenceRvmRubies(rvm)), describe(rubies));
+        assertTrue("Made " + files.getCalls() + " file system calls for " + gemsets + " gemsets",
+            files.getCalls() <= FIXED_CALLS + CALLS_PER_ENTRY * gemsets);
+    }
+
+    private void assertPathScanScales(int dirs) throws Exception {
+        if (Util.isWindows()) return;
+
+        tree = FakeRubyTree.create().populatePath(dirs, Math.max(1, dirs / 10), 3);
+
+        CountingFiles files = new CountingFiles();
+        Collection<File> rubies = Util.getRubyInstallations(tree.getPath(), files);
+
+        assertEquals(tree.getPathRubies(), new ArrayList<File>(rubies));
+        assertTrue("Made " + files.getCalls() + " file system calls for " + dirs + " PATH entries",
+            files.getCalls() <= FIXED_CALLS + CALLS_PER_ENTRY * dirs);
+    }
+
+    private static List<String> describe(RubyInstallation[] rubies) {
+        List<String> descriptions = new ArrayList<String>();
+        for (RubyInstallation ruby : rubies) {
+            descriptions.add(ruby.getName() + " " + ruby.getPath() + " " + ruby.getGemHome()
+                + " " + ruby.getGemPath() + " " + ruby.getBinPath());
+        }
+        return descriptions;
+    }
+
+    /**
+     * Counts the stats, listings and canonicalizations discovery makes.
+     */
+    private static final class CountingFiles extends DiscoveryFiles {
+        private long calls;
+
+        long getCalls() {
+            return calls;
+        }
+
+        @Override
+        boolean exists(File file) {
+            calls++;
+            return super.exists(file);
+        }
+
+        @Override
+        boolean isFile(File file) {
+            calls++;
+            return super.isFile(file);
+        }
+
+        @Override
+        boolean isDirectory(File file) {
+            calls++;
+            return super.isDirectory(file);
+        }
+
+        @Override
+        File[] listFiles(File dir) {
+            calls++;
+            return super.listFiles(dir);
+        }
+
+        @Override
+        File[] listFiles(File dir, FilenameFilter filter) {
+            calls++;
+            return super.listFiles(dir, filter);
+        }
+
+        @Override
+        String[] list(File dir, FilenameFilter filter) {
+            calls++;
+            return super.list(dir, filter);
+        }
+
+        @Override
+        File getCanonicalFile(File file) throws IOException {
+            calls++;
+            return super.getCanonicalFile(file);
+        }
+    }
+
+    /**
+     * The RVM scan as it was before the single pass scanner: every ruby lists the gems
+     * directory again and stats every gemset of the tree.
+     */
+    private static RubyInstallation[] referenceRvmRubies(Rvm rvm) throws IOException {
+        Collection<RubyInstallation> rubies = new LinkedHashSet<RubyInstallation>();
+        File rubiesPath = new File(rvm.getPath(), "rubies");
+        File gemsPath = new File(rvm.getPath(), "gems");
+        if (!rubiesPath.exists() || !gemsPath.exists()) {
+            return new RubyInstallation[0];
+        }
+
+        for (File candidate : rubiesPath.listFiles()) {
+            final String name = candidate.getName();
+            List<File> gems = Arrays.asList(gemsPath.listFiles(new FileFilter() {
+                public boolean accept(File pathname) {
+                    return pathname.getName().startsWith(name) && !pathname.getName().endsWith("@");
+                }
+            }));
+            File[] globals = gemsPath.listFiles(new FileFilter() {
+                public boolean accept(File pathname) {
+                    return pathname.getName().startsWith(name) && pathname.getName().endsWith("@global");
+                }
+            });
+            File global = globals.length > 0 ? globals[0] : null;
+
+            for (File gemCandidate : gems) {
+                String newpath = "";
+                if (hasSpecifications(gemCandidate) && !hasRake(gemCandidate)) {
+                    if (global != null && hasSpecifications(global)) {
+                        if (!hasRake(global)) {
+                            continue;
+                        }
+                        newpath = global.getPath().concat(File.separator).concat("bin");
+                    }
+                }
+
+                RubyInstallation ruby = new RubyInstallation(gemCandidate.getName(), candidate.getCanonicalPath());
+                ruby.setGemHome(gemCandidate.getCanonicalPath());
+
+                Collection<String> paths = new LinkedHashSet<String>();
+                paths.add(ruby.getGemHome());
+                for (File gem : gems) {
+                    if (gem.getCanonicalPath().startsWith(ruby.getGemHome() + "@") && hasSpecifications(gem)) {
+                        paths.add(gem.getCanonicalPath());
+                    }
+                }
+                if (global != null && hasSpecifications(global)) {
+                    paths.add(global.getCanonicalPath());
+                }
+                StringBuilder gemPath = new StringBuilder();
+                for (String canonical : paths) {
+                    if (gemPath.length() > 0) {
+                        gemPath.append(File.pathSeparator);
+                    }
+                    gemPath.append(canonical);
+                }
+                ruby.setGemPath(gemPath.toString());
+
+                if (newpath.length() > 0) {
+                    newpath = newpath.concat(File.pathSeparator);
+                }
+                newpath = newpath.concat(rubiesPath.getPath() + File.separator + name + File.separator + "bin");
+                newpath = newpath.concat(File.pathSeparator).concat(new File(ruby.getGemHome(), "bin").getCanonicalPath());
+                ruby.setBinPath(newpath);
+
+                rubies.add(ruby);
+            }
+        }
+        return rubies.toArray(new RubyInstallation[rubies.size()]);
+    }
+
+    private static final Pattern RAKE_SPEC = Pattern.compile("rake\\-([\\d.]+).gemspec");
+
+    private static boolean hasSpecifications(File gemset) {
+        return new File(gemset, "specifications").exists();
+    }
+
+    private static boolean hasRake(File gemset) {
+        String[] specs = new File(gemset, "specifications").list();
+        if (specs != null) {
+            for (String spec : specs) {
+                if (RAKE_SPEC.matcher(spec).matches()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
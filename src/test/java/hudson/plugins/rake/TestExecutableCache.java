@@ -0,0 +1,54 @@
+package hudson.plugins.rake;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestExecutableCache {
+
+    private FakeRubyTree tree;
+
+    @Before
+    public void setUp() throws IOException {
+        tree = FakeRubyTree.create();
+        ExecutableCache.invalidateAll();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        ExecutableCache.invalidateAll();
+        tree.delete();
+    }
+
+    @Test
+    public void testFindInPathIsRevalidated() throws IOException {
+        if (Util.isWindows()) return;
+
+        tree.addPathDir("empty");
+        File first = new File(tree.addPathRuby("first", true), "bin/rake");
+        File second = new File(tree.addPathRuby("second", true), "bin/rake");
+        String path = tree.getPath();
+
+        assertEquals(first.getAbsolutePath(), ExecutableCache.findInPath("node", "rake", path, File.pathSeparator));
+
+        first.delete();
+        assertEquals(second.getAbsolutePath(), ExecutableCache.findInPath("node", "rake", path, File.pathSeparator));
+    }
+
+    @Test
+    public void testMissingExecutableIsNotCached() throws IOException {
+        if (Util.isWindows()) return;
+
+        tree.addPathDir("late/bin");
+        String path = tree.getPath();
+        assertEquals("rake", ExecutableCache.findInPath("node", "rake", path, File.pathSeparator));
+
+        File rake = new File(tree.addPathRuby("late", true), "bin/rake");
+        assertEquals(rake.getAbsolutePath(), ExecutableCache.findInPath("node", "rake", path, File.pathSeparator));
+    }
+}
@@ -0,0 +1,67 @@
+package hudson.plugins.rake;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestInputFingerprint {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("rake-inputs", "");
+        dir.delete();
+        new File(dir, "app/models").mkdirs();
+        write("app/models/user.rb", "class User; end");
+        write("app/models/post.rb", "class Post; end");
+        write("README", "readme");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        hudson.Util.deleteRecursive(dir);
+    }
+
+    @Test
+    public void testUnrelatedChangesKeepTheFingerprint() throws Exception {
+        String before = new InputFingerprint("app/**/*.rb").invoke(dir, null);
+        write("README", "changed");
+
+        assertEquals(before, new InputFingerprint(" app/**/*.rb \n").invoke(dir, null));
+    }
+
+    @Test
+    public void testInputChangesUpdateTheFingerprint() throws Exception {
+        String before = new InputFingerprint("app/**/*.rb, README").invoke(dir, null);
+        File user = write("app/models/user.rb", "class User < Base; end");
+        user.setLastModified(user.lastModified() + 2000);
+
+        assertFalse(before.equals(new InputFingerprint("app/**/*.rb, README").invoke(dir, null)));
+    }
+
+    @Test
+    public void testNewInputsUpdateTheFingerprint() throws Exception {
+        String before = new InputFingerprint("app/**/*.rb").invoke(dir, null);
+        write("app/models/comment.rb", "class Comment; end");
+
+        assertFalse(before.equals(new InputFingerprint("app/**/*.rb").invoke(dir, null)));
+    }
+
+    private File write(String name, String content) throws IOException {
+        File file = new File(dir, name);
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+}
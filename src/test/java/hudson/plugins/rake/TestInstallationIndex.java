@@ -0,0 +1,73 @@
+package hudson.plugins.rake;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestInstallationIndex {
+
+    private File root;
+    private File home;
+    private File specifications;
+
+    @Before
+    public void setUp() throws IOException {
+        root = File.createTempFile("rake-index", "");
+        root.delete();
+        home = new File(root, "jruby");
+        new File(home, "bin").mkdirs();
+        new File(home, "bin/ruby").createNewFile();
+        new File(home, "bin/jruby").createNewFile();
+        specifications = new File(home, "lib/ruby/gems/1.8/specifications");
+        specifications.mkdirs();
+        new File(specifications, "rake-0.9.2.gemspec").createNewFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        hudson.Util.deleteRecursive(root);
+    }
+
+    @Test
+    public void testDetectsRubyInPath() throws IOException {
+        if (Util.isWindows()) return;
+
+        InstallationIndex index = InstallationIndex.load(null);
+        Collection<File> rubies = index.getRubyInstallations(new File(home, "bin").getPath());
+
+        assertEquals(1, rubies.size());
+        assertEquals(home.getCanonicalFile(), rubies.iterator().next());
+    }
+
+    @Test
+    public void testRescansChangedEntries() throws IOException {
+        if (Util.isWindows()) return;
+
+        InstallationIndex index = InstallationIndex.load(null);
+        String path = new File(home, "bin").getPath();
+        assertEquals(1, index.getRubyInstallations(path).size());
+
+        new File(specifications, "rake-0.9.2.gemspec").delete();
+        specifications.setLastModified(specifications.lastModified() - 10000);
+
+        assertEquals(0, index.getRubyInstallations(path).size());
+    }
+
+    @Test
+    public void testPersistsEntries() throws IOException {
+        if (Util.isWindows()) return;
+
+        File file = new File(root, InstallationIndex.FILE_NAME);
+        String path = new File(home, "bin").getPath();
+        InstallationIndex.load(file).getRubyInstallations(path);
+
+        assertTrue(file.exists());
+        assertEquals(1, InstallationIndex.load(file).getRubyInstallations(path).size());
+    }
+}
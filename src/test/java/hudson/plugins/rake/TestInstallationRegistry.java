@@ -0,0 +1,169 @@
+package hudson.plugins.rake;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class TestInstallationRegistry {
+
+    private static final int INSTALLATIONS = 300;
+    private static final int BUILDS = 8;
+    private static final int RELOADS = 4;
+    private static final int ROUNDS = 200;
+
+    @Test
+    public void testLookups() {
+        RubyInstallation first = new RubyInstallation("ruby-1.9.3", "/opt/first");
+        RubyInstallation second = new RubyInstallation("ruby-1.9.3", "/opt/second");
+        RubyInstallation jruby = new RubyInstallation("jruby", "/opt/jruby");
+        InstallationRegistry registry = new InstallationRegistry(new RubyInstallation[] {first, second, jruby});
+
+        assertSame(first, registry.get("ruby-1.9.3"));
+        assertSame(jruby, registry.get("jruby"));
+        assertNull(registry.get("missing"));
+        assertNull(registry.get(null));
+        assertEquals(3, registry.size());
+    }
+
+    @Test
+    public void testSnapshotsAreImmutable() {
+        RubyInstallation ruby = new RubyInstallation("ruby", "/opt/ruby");
+        RubyInstallation[] rubies = {ruby};
+        InstallationRegistry registry = new InstallationRegistry(rubies);
+
+        rubies[0] = new RubyInstallation("other", "/opt/other");
+        registry.getInstallations()[0] = rubies[0];
+
+        assertSame(ruby, registry.getInstallations()[0]);
+        assertSame(ruby, registry.get("ruby"));
+        assertNull(registry.get("other"));
+    }
+
+    @Test
+    public void testRescansReplaceTheInstallationsOfTheSameName() {
+        RubyInstallation configured = new RubyInstallation("ruby", "/opt/ruby");
+        InstallationRegistry registry = new InstallationRegistry(new RubyInstallation[] {configured});
+
+        registry = registry.with(new RubyInstallation[] {new RubyInstallation("ruby-1.9.3@app", "/rvm/old")});
+        RubyInstallation moved = new RubyInstallation("ruby-1.9.3@app", "/rvm/new");
+        registry = registry.with(new RubyInstallation[] {moved});
+        RubyInstallation rescanned = new RubyInstallation("ruby-1.9.3@app", "/rvm/new");
+        registry = registry.with(new RubyInstallation[] {rescanned});
+
+        assertEquals(2, registry.size());
+        assertSame(configured, registry.get("ruby"));
+        assertSame(rescanned, registry.get("ruby-1.9.3@app"));
+    }
+
+    @Test
+    public void testUpdateStartsOverWhenAnotherSnapshotIsPublished() {
+        final RubyInstallation configured = new RubyInstallation("configured", "/opt/configured");
+        final AtomicReference<InstallationRegistry> registry =
+            new AtomicReference<InstallationRegistry>(InstallationRegistry.EMPTY);
+        final List<InstallationRegistry> seen = new ArrayList<InstallationRegistry>();
+
+        InstallationRegistry published = InstallationRegistry.update(registry, new InstallationRegistry.Update() {
+            public InstallationRegistry apply(InstallationRegistry current) {
+                seen.add(current);
+                if (seen.size() == 1) {
+                    // a configuration is saved while the first scan runs
+                    registry.set(new InstallationRegistry(new RubyInstallation[] {configured}));
+                }
+                return current.with(new RubyInstallation[] {new RubyInstallation("scanned", "/opt/scanned")});
+            }
+        });
+
+        assertEquals(2, seen.size());
+        assertSame(published, registry.get());
+        assertSame(configured, published.get("configured"));
+        assertNotNull(published.get("scanned"));
+    }
+
+    /**
+     * Builds look installations up while reloads publish new snapshots through the registry
+     * update: every lookup has to see a consistent snapshot and no reload may lose the
+     * installations of another.
+     */
+    @Test
+    public void testConcurrentBuildsAndReloads() throws Exception {
+        RubyInstallation[] base = new RubyInstallation[INSTALLATIONS];
+        for (int i = 0; i < base.length; i++) {
+            base[i] = new RubyInstallation("ruby-" + i, "/opt/ruby-" + i);
+        }
+        final AtomicReference<InstallationRegistry> registry =
+            new AtomicReference<InstallationRegistry>(new InstallationRegistry(base));
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int b = 0; b < BUILDS; b++) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int round = 0; round < ROUNDS * 10; round++) {
+                            InstallationRegistry snapshot = registry.get();
+                            String name = "ruby-" + (round % INSTALLATIONS);
+                            RubyInstallation ruby = snapshot.get(name);
+                            assertNotNull(name, ruby);
+                            assertEquals(name, ruby.getName());
+                            assertTrue(snapshot.size() >= INSTALLATIONS);
+                        }
+                    } catch (Throwable t) {
+                        synchronized (failures) {
+                            failures.add(t);
+                        }
+                    }
+                }
+            });
+        }
+        for (int r = 0; r < RELOADS; r++) {
+            final int reload = r;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int round = 0; round < ROUNDS; round++) {
+                            final RubyInstallation[] added = {
+                                new RubyInstallation("gemset-" + reload + "-" + round, "/opt/gemset")
+                            };
+                            InstallationRegistry.update(registry, new InstallationRegistry.Update() {
+                                public InstallationRegistry apply(InstallationRegistry current) {
+                                    return current.with(added).sorted();
+                                }
+                            });
+                        }
+                    } catch (Throwable t) {
+                        synchronized (failures) {
+                            failures.add(t);
+                        }
+                    }
+                }
+            });
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(failures.toString(), 0, failures.size());
+        InstallationRegistry last = registry.get();
+        assertEquals(INSTALLATIONS + RELOADS * ROUNDS, last.size());
+        for (int r = 0; r < RELOADS; r++) {
+            for (int round = 0; round < ROUNDS; round++) {
+                assertNotNull(last.get("gemset-" + r + "-" + round));
+            }
+        }
+    }
+}
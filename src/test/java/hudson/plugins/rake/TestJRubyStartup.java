@@ -0,0 +1,18 @@
+package hudson.plugins.rake;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class TestJRubyStartup {
+
+    @Test
+    public void testOnlyAnUnknownArchiveOptionMeansUnsupported() {
+        assertTrue(JRubyStartup.isRejected(
+            "Unrecognized VM option 'ArchiveClassesAtExit=/tmp/jruby.jsa'\n"
+            + "Error: Could not create the Java Virtual Machine.\n"
+            + "Error: A fatal exception has occurred. Program will exit.\n"));
+        assertFalse(JRubyStartup.isRejected("Error: Could not find or load main class org.jruby.Main\n"));
+        assertFalse(JRubyStartup.isRejected("java.lang.OutOfMemoryError: Java heap space\n"));
+    }
+}
@@ -0,0 +1,70 @@
+package hudson.plugins.rake;
+
+import static org.junit.Assert.*;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.TaskListener;
+import hudson.util.ArgumentListBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.junit.Test;
+
+public class TestParallelTaskGroups {
+
+    @Test
+    public void testParse() {
+        assertEquals(Arrays.asList("lint", "spec:unit spec:models", "assets:precompile"),
+            ParallelTaskGroups.parse("lint\n  spec:unit \t spec:models\r\n\n assets:precompile \n"));
+    }
+
+    @Test
+    public void testParseEmpty() {
+        assertTrue(ParallelTaskGroups.parse(null).isEmpty());
+        assertTrue(ParallelTaskGroups.parse(" \n\t\n").isEmpty());
+    }
+
+    @Test
+    public void testPrefixedOutput() throws IOException {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(log, true);
+        ParallelTaskGroups.PrefixedOutputStream prefixed = new ParallelTaskGroups.PrefixedOutputStream("[lint] ", out);
+
+        prefixed.write("one\ntwo\n".getBytes());
+
+        assertEquals("[lint] one\n[lint] two\n", log.toString());
+    }
+
+    @Test
+    public void testPrefixedOutputPrintsTheLastLineOnClose() throws IOException {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(log, true);
+        ParallelTaskGroups.PrefixedOutputStream prefixed = new ParallelTaskGroups.PrefixedOutputStream("[lint] ", out);
+
+        prefixed.write("one\ntwo".getBytes());
+        assertEquals("[lint] one\n", log.toString());
+
+        prefixed.close();
+        assertEquals("[lint] one\n[lint] two\n", log.toString());
+    }
+
+    @Test
+    public void testKilledGroupPrintsItsLastLine() throws Exception {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(log, true);
+        // the group name is the script's $0
+        ArgumentListBuilder args = new ArgumentListBuilder("sh", "-c",
+            "case $0 in fail) sleep 1; exit 1;; *) printf working; exec sleep 30;; esac");
+
+        assertFalse(new ParallelTaskGroups("fail\nslow").run(new Launcher.LocalLauncher(TaskListener.NULL), args,
+            new HashMap<String, String>(), new FilePath(new File(".")), out));
+
+        assertTrue(log.toString(), log.toString().contains("[slow] working\n"));
+    }
+}
@@ -0,0 +1,142 @@
+package hudson.plugins.rake;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestProcessSampler {
+
+    private static final String ID = "build-1";
+
+    private File proc;
+    private File reports;
+
+    @Before
+    public void setUp() throws IOException {
+        proc = File.createTempFile("proc", "");
+        proc.delete();
+        proc.mkdirs();
+        reports = new File(proc, "reports");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        hudson.Util.deleteRecursive(proc);
+    }
+
+    @Test
+    public void testSamplesMarkedProcessesAndTheirDescendants() throws IOException {
+        process(100, 1, "ruby (rake)", 50, 10, 0, 0, 10240, 1000, 2000, ProcessSampler.MARKER + "=" + ID);
+        process(101, 100, "ruby", 20, 5, 0, 0, 2048, 300, 400, "PATH=/usr/bin");
+        process(200, 1, "java", 900, 900, 0, 0, 999999, 99999, 99999, ProcessSampler.MARKER + "=other");
+
+        ProcessSampler.Tracker tracker = new ProcessSampler.Tracker(ID, reports);
+        tracker.sample(proc);
+        ProcessSampler.Usage usage = tracker.getUsage();
+
+        assertEquals((10240 + 2048) * 1024L, usage.getPeakRssBytes());
+        assertEquals(850, usage.getCpuMillis());
+        assertEquals(1300, usage.getReadBytes());
+        assertEquals(2400, usage.getWriteBytes());
+        assertEquals(1, usage.getSamples());
+    }
+
+    @Test
+    public void testKeepsTheUsageOfFinishedProcesses() throws IOException {
+        process(100, 1, "rake", 50, 10, 0, 0, 10240, 1000, 2000, ProcessSampler.MARKER + "=" + ID);
+        process(101, 100, "ruby", 20, 5, 0, 0, 2048, 300, 400, "");
+        ProcessSampler.Tracker tracker = new ProcessSampler.Tracker(ID, reports);
+        tracker.sample(proc);
+
+        // the child is done and its parent waited for it
+        hudson.Util.deleteRecursive(new File(proc, "101"));
+        process(100, 1, "rake", 60, 10, 25, 5, 4096, 1500, 2000, ProcessSampler.MARKER + "=" + ID);
+        tracker.sample(proc);
+        ProcessSampler.Usage usage = tracker.getUsage();
+
+        assertEquals((10240 + 2048) * 1024L, usage.getPeakRssBytes());
+        assertEquals(1000, usage.getCpuMillis());
+        assertEquals(1800, usage.getReadBytes());
+        assertEquals(2400, usage.getWriteBytes());
+        assertEquals(2, usage.getSamples());
+    }
+
+    @Test
+    public void testAddsUpRootsFinishingAtDifferentTimes() throws IOException {
+        process(100, 1, "rake", 100, 0, 0, 0, 1024, 0, 0, ProcessSampler.MARKER + "=" + ID);
+        process(200, 1, "rake", 100, 0, 0, 0, 1024, 0, 0, ProcessSampler.MARKER + "=" + ID);
+        ProcessSampler.Tracker tracker = new ProcessSampler.Tracker(ID, reports);
+        tracker.sample(proc);
+
+        hudson.Util.deleteRecursive(new File(proc, "100"));
+        process(200, 1, "rake", 300, 0, 0, 0, 1024, 0, 0, ProcessSampler.MARKER + "=" + ID);
+        tracker.sample(proc);
+
+        assertEquals(4000, tracker.getUsage().getCpuMillis());
+    }
+
+    @Test
+    public void testUsesTheFinalTimesReportedOnExit() throws IOException {
+        process(100, 1, "rake", 50, 10, 0, 0, 1024, 0, 0, ProcessSampler.MARKER + "=" + ID);
+        ProcessSampler.Tracker tracker = new ProcessSampler.Tracker(ID, reports);
+        tracker.sample(proc);
+
+        // the root and a process too quick to be sampled are gone, both reported their times
+        hudson.Util.deleteRecursive(new File(proc, "100"));
+        reports.mkdirs();
+        write(new File(reports, "100.stat"), stat(100, 1, "rake", 80, 20, 30, 10));
+        write(new File(reports, "300.stat"), stat(300, 1, "ruby", 15, 5, 0, 0));
+        tracker.sample(proc);
+
+        assertEquals(1600, tracker.getUsage().getCpuMillis());
+        assertEquals(0, reports.list().length);
+    }
+
+    @Test
+    public void testSamplesRealProcesses() throws Exception {
+        assumeTrue(new File("/proc/self/stat").isFile());
+
+        ProcessBuilder builder = new ProcessBuilder("sleep", "5");
+        builder.environment().put(ProcessSampler.MARKER, ID);
+        Process sleep = builder.start();
+        try {
+            ProcessSampler.Tracker tracker = new ProcessSampler.Tracker(ID, reports);
+            tracker.sample(new File("/proc"));
+            assertTrue(tracker.getUsage().getPeakRssBytes() > 0);
+        } finally {
+            sleep.destroy();
+        }
+    }
+
+    private void process(int pid, int ppid, String comm, long utime, long stime, long cutime, long cstime,
+            long rssKb, long readBytes, long writeBytes, String environ) throws IOException {
+        File dir = new File(proc, String.valueOf(pid));
+        dir.mkdirs();
+        write(new File(dir, "stat"), stat(pid, ppid, comm, utime, stime, cutime, cstime) + " 123456 " + rssKb / 4 + "\n");
+        write(new File(dir, "status"), "Name:\t" + comm + "\nState:\tS (sleeping)\nVmRSS:\t  " + rssKb + " kB\nThreads:\t1\n");
+        write(new File(dir, "io"), "rchar: 1\nwchar: 1\nread_bytes: " + readBytes + "\nwrite_bytes: " + writeBytes + "\n");
+        write(new File(dir, "environ"), environ + "\0HOME=/root\0");
+    }
+
+    private static String stat(int pid, int ppid, String comm, long utime, long stime, long cutime, long cstime) {
+        return pid + " (" + comm + ") S " + ppid + " " + pid + " " + pid + " 0 -1 4194304 100 0 0 0 "
+            + utime + " " + stime + " " + cutime + " " + cstime + " 20 0 1 0 " + (1000 + pid);
+    }
+
+    private static void write(File file, String content) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes());
+        } finally {
+            out.close();
+        }
+    }
+}
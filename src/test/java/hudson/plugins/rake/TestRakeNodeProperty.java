@@ -0,0 +1,22 @@
+package hudson.plugins.rake;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class TestRakeNodeProperty {
+
+    @Test
+    public void testJobsShareTheCores() {
+        assertEquals(8, RakeNodeProperty.getJobs(16, 2));
+        assertEquals(5, RakeNodeProperty.getJobs(16, 3));
+        assertEquals(1, RakeNodeProperty.getJobs(2, 4));
+        assertEquals(4, RakeNodeProperty.getJobs(4, 0));
+    }
+
+    @Test
+    public void testConfiguredJobs() {
+        assertEquals(0, new RakeNodeProperty(-3).getJobs());
+        assertEquals(6, new RakeNodeProperty(6).getJobs());
+    }
+}
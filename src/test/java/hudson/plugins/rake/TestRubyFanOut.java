@@ -0,0 +1,108 @@
+package hudson.plugins.rake;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.TaskListener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestRubyFanOut {
+
+    private File dir;
+    private File workspace;
+    private File shared;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("rake-fanout", "");
+        dir.delete();
+        workspace = new File(dir, "workspace");
+        shared = new File(dir, "shared");
+        new File(workspace, "app").mkdirs();
+        new File(workspace, "app/Rakefile").createNewFile();
+        shared.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        hudson.Util.deleteRecursive(dir);
+    }
+
+    @Test
+    public void testParse() {
+        assertEquals(Arrays.asList("ruby-1.9.3", "jruby-1.7.4", "ruby-2.0.0@app"),
+            RubyFanOut.parse("ruby-1.9.3, jruby-1.7.4\n ruby-2.0.0@app\r\nruby-1.9.3\n"));
+        assertEquals(Collections.emptyList(), RubyFanOut.parse(" \n,"));
+        assertEquals(Collections.emptyList(), RubyFanOut.parse(null));
+    }
+
+    @Test
+    public void testRunsEveryRubyInItsOwnWorkspaceWithinTheCap() throws Exception {
+        assumeTrue(File.pathSeparatorChar == ':');
+        Launcher launcher = new Launcher.LocalLauncher(TaskListener.NULL);
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        PrintStream logger = new PrintStream(log, true);
+        RubyFanOut fanOut = new RubyFanOut();
+        fanOut.add("ruby-1.9.3", ruby("ruby-1.9.3", 0), new HashMap<String, String>(), new FilePath(workspace).child("app"));
+        for (String name : Arrays.asList("ruby-2.0.0", "jruby-1.7.4")) {
+            FilePath copy = fanOut.copyWorkspace(launcher, new FilePath(workspace), name, logger);
+            fanOut.add(name, ruby(name, 0), new HashMap<String, String>(), copy.child("app"));
+        }
+
+        assertTrue(fanOut.run(launcher, 2, logger));
+
+        int peak = 0;
+        for (String count : hudson.Util.loadFile(new File(shared, "counts")).trim().split("\\s+")) {
+            peak = Math.max(peak, Integer.parseInt(count));
+        }
+        assertEquals(2, peak);
+        // each ruby saw only its own files, and the copies are gone
+        assertEquals(Arrays.asList("Rakefile", "ruby-1.9.3.out"), Arrays.asList(sorted(new File(workspace, "app").list())));
+        assertEquals(Arrays.asList("shared", "workspace"), Arrays.asList(sorted(dir.list())));
+        assertTrue(log.toString().contains("[ruby-2.0.0] ran ruby-2.0.0"));
+    }
+
+    @Test
+    public void testFailsWhenAnyRubyFails() throws Exception {
+        assumeTrue(File.pathSeparatorChar == ':');
+        RubyFanOut fanOut = new RubyFanOut();
+        fanOut.add("ruby-1.9.3", ruby("ruby-1.9.3", 0), new HashMap<String, String>(), new FilePath(workspace));
+        fanOut.add("ruby-2.0.0", ruby("ruby-2.0.0", 3), new HashMap<String, String>(), new FilePath(shared));
+
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        assertFalse(fanOut.run(new Launcher.LocalLauncher(TaskListener.NULL), 4, new PrintStream(log, true)));
+        assertTrue(log.toString().contains("ruby-1.9.3: SUCCESS"));
+        assertTrue(log.toString().contains("ruby-2.0.0: FAILURE (exit code 3)"));
+    }
+
+    /**
+     * A command standing for rake, which records how many rubies run with it, checks it only sees
+     * its own output and exits with the given code.
+     */
+    private List<String> ruby(String name, int exitCode) {
+        String running = shared.getPath() + "/running." + name;
+        return Arrays.asList("sh", "-c",
+            "mkdir " + running + "; ls -d " + shared.getPath() + "/running.* | wc -l >> " + shared.getPath() + "/counts;"
+            + " ls *.out >/dev/null 2>&1 && exit 9; echo ran " + name + "; touch " + name + ".out; sleep 1;"
+            + " rmdir " + running + "; exit " + exitCode);
+    }
+
+    private static String[] sorted(String[] names) {
+        Arrays.sort(names);
+        return names;
+    }
+}
@@ -0,0 +1,160 @@
+package hudson.plugins.rake;
+
+import static org.junit.Assert.*;
+import hudson.FilePath;
+import hudson.remoting.Callable;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestRvmScanner {
+
+    private File rvm;
+
+    @Before
+    public void setUp() throws IOException {
+        rvm = File.createTempFile("rvm", "").getCanonicalFile();
+        rvm.delete();
+        new File(rvm, "rubies/ruby-1.9.3/bin").mkdirs();
+        gemset("ruby-1.9.3", true);
+        gemset("ruby-1.9.3@global", true);
+        gemset("ruby-1.9.3@app", false);
+        new File(rvm, "gems/ruby-1.9.3@").mkdirs();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        hudson.Util.deleteRecursive(rvm);
+    }
+
+    @Test
+    public void testScan() throws IOException {
+        Map<String, RubyInstallation> rubies = new HashMap<String, RubyInstallation>();
+        for (RubyInstallation ruby : new RvmScanner(new Rvm(rvm.getPath())).scan()) {
+            rubies.put(ruby.getName(), ruby);
+        }
+        assertEquals(new HashSet<String>(Arrays.asList("ruby-1.9.3", "ruby-1.9.3@global", "ruby-1.9.3@app")),
+            rubies.keySet());
+
+        String rubyBin = new File(rvm, "rubies/ruby-1.9.3/bin").getPath();
+        String home = new File(rvm, "gems/ruby-1.9.3").getPath();
+        String global = home + "@global";
+        String app = home + "@app";
+
+        RubyInstallation base = rubies.get("ruby-1.9.3");
+        assertEquals(new File(rvm, "rubies/ruby-1.9.3").getPath(), base.getPath());
+        assertEquals(home, base.getGemHome());
+        assertEquals(new HashSet<String>(Arrays.asList(home, global, app)),
+            new HashSet<String>(Arrays.asList(base.getGemPath().split(File.pathSeparator))));
+        assertTrue(base.getGemPath().startsWith(home + File.pathSeparator));
+        assertEquals(rubyBin + File.pathSeparator + home + "/bin", base.getBinPath());
+
+        RubyInstallation withoutRake = rubies.get("ruby-1.9.3@app");
+        assertEquals(app + File.pathSeparator + global, withoutRake.getGemPath());
+        assertEquals(global + "/bin" + File.pathSeparator + rubyBin + File.pathSeparator + app + "/bin",
+            withoutRake.getBinPath());
+    }
+
+    @Test
+    public void testResolveMatchesScan() throws IOException {
+        RvmScanner scanner = new RvmScanner(new Rvm(rvm.getPath()));
+        for (RubyInstallation ruby : scanner.scan()) {
+            RubyInstallation resolved = scanner.resolve(ruby.getName());
+            assertNotNull(ruby.getName(), resolved);
+            assertEquals(ruby.getPath(), resolved.getPath());
+            assertEquals(ruby.getGemHome(), resolved.getGemHome());
+            assertEquals(ruby.getGemPath(), resolved.getGemPath());
+            assertEquals(ruby.getBinPath(), resolved.getBinPath());
+        }
+    }
+
+    @Test
+    public void testResolveMissingGemset() throws IOException {
+        RvmScanner scanner = new RvmScanner(new Rvm(rvm.getPath()));
+        assertNull(scanner.resolve("ruby-1.9.3@missing"));
+        assertNull(scanner.resolve("ruby-1.9.3@"));
+        assertNull(scanner.resolve("ruby-2.0.0"));
+    }
+
+    @Test
+    public void testMissingTree() throws IOException {
+        assertEquals(0, new RvmScanner(new Rvm(new File(rvm, "missing").getPath())).scan().length);
+    }
+
+    @Test
+    public void testScanThroughFilePath() {
+        assertEquals(3, RvmUtil.getRvmRubies(new FilePath(rvm)).length);
+        assertEquals(3, RvmUtil.getRvmRubies(new Rvm(rvm.getPath())).length);
+    }
+
+    @Test
+    public void testRemoteScanIsOneChannelCall() {
+        CountingChannel channel = new CountingChannel();
+
+        assertEquals(3, RvmUtil.getRvmRubies(new FilePath(channel, rvm.getPath())).length);
+        assertEquals(1, channel.calls);
+    }
+
+    /**
+     * Channel to the local node that counts the calls made through it.
+     */
+    private static final class CountingChannel implements VirtualChannel {
+        private int calls;
+
+        public <V, T extends Throwable> V call(Callable<V, T> callable) throws T {
+            calls++;
+            return callable.call();
+        }
+
+        public <V, T extends Throwable> Future<V> callAsync(final Callable<V, T> callable) {
+            calls++;
+            FutureTask<V> task = new FutureTask<V>(new java.util.concurrent.Callable<V>() {
+                public V call() throws Exception {
+                    try {
+                        return callable.call();
+                    } catch (Throwable t) {
+                        throw new ExecutionException(t);
+                    }
+                }
+            });
+            task.run();
+            return task;
+        }
+
+        public void close() {
+        }
+
+        public void join() {
+        }
+
+        public void join(long timeout) {
+        }
+
+        public <T> T export(Class<T> type, T instance) {
+            return instance;
+        }
+
+        public void syncLocalIO() {
+        }
+    }
+
+    private void gemset(String name, boolean rake) throws IOException {
+        File specifications = new File(rvm, "gems/" + name + "/specifications");
+        specifications.mkdirs();
+        if (rake) {
+            new File(specifications, "rake-0.9.2.gemspec").createNewFile();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package hudson.plugins.rake;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class TestTaskGraph {
+
+    private static final String OUTPUT =
+        "(in /tmp/project)\n" +
+        "rake default\n" +
+        "    spec\n" +
+        "    lint\n" +
+        "rake spec\n" +
+        "    compile\n" +
+        "rake lint\n" +
+        "rake compile\n" +
+        "    src/main.c\n";
+
+    @Test
+    public void testParse() {
+        TaskGraph graph = TaskGraph.parse(OUTPUT);
+
+        assertTrue(graph.contains("default"));
+        assertFalse(graph.contains("src/main.c"));
+        assertEquals(Arrays.asList("spec", "lint"), graph.getTaskPrerequisites("default"));
+        assertTrue(graph.getTaskPrerequisites("compile").isEmpty());
+    }
+
+    @Test
+    public void testParseNamespacedTasksAndSources() {
+        TaskGraph graph = TaskGraph.parse(
+            "rake db:migrate\n" +
+            "    db:environment\n" +
+            "rake db:environment\n" +
+            "file /tmp/project/Rakefile\n" +
+            "file /tmp/project/lib/tasks/db.rake\n");
+
+        assertEquals(Arrays.asList("db:environment"), graph.getTaskPrerequisites("db:migrate"));
+        assertTrue(graph.getTaskPrerequisites("db:environment").isEmpty());
+        assertEquals(Arrays.asList("/tmp/project/Rakefile", "/tmp/project/lib/tasks/db.rake"), graph.getSources());
+    }
+
+    @Test
+    public void testClosureListsPrerequisitesFirst() {
+        TaskGraph graph = TaskGraph.parse(OUTPUT);
+
+        assertEquals(Arrays.asList("compile", "spec", "lint", "default"),
+            new ArrayList<String>(graph.closure(Collections.singletonList("default"))));
+    }
+
+    @Test
+    public void testReady() {
+        TaskGraph graph = TaskGraph.parse(OUTPUT);
+        Set<String> closure = graph.closure(Collections.singletonList("default"));
+        Set<String> started = new HashSet<String>();
+        Set<String> done = new HashSet<String>();
+
+        assertEquals(Arrays.asList("compile", "lint"), graph.ready(closure, started, done));
+
+        started.addAll(Arrays.asList("compile", "lint"));
+        done.add("compile");
+        assertEquals(Arrays.asList("spec"), graph.ready(closure, started, done));
+    }
+}
@@ -0,0 +1,179 @@
+package hudson.plugins.rake;
+
+import static org.junit.Assert.*;
+
+import hudson.FilePath;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.tools.tar.TarConstants;
+import org.apache.tools.tar.TarEntry;
+import org.apache.tools.tar.TarOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestTaskOutputCache {
+
+    private File dir;
+    private File store;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("rake-outputs", "");
+        dir.delete();
+        new File(dir, "app/assets").mkdirs();
+        write(new File(dir, "app/assets/app.js"), "alert(1);");
+        store = new File(dir, "store");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        hudson.Util.deleteRecursive(dir);
+    }
+
+    @Test
+    public void testParse() {
+        List<TaskOutputCache.CacheableTask> tasks = TaskOutputCache.parse(
+            "assets:precompile | app/assets/** | public/assets, public/packs\n" +
+            "broken line\n" +
+            "codegen | | lib/generated\n");
+
+        assertEquals(2, tasks.size());
+        assertEquals("assets:precompile", tasks.get(0).getName());
+        assertEquals("public/assets/**,public/packs/**", tasks.get(0).getOutputGlob());
+        assertEquals("codegen", tasks.get(1).getName());
+    }
+
+    @Test
+    public void testKeyDependsOnInputsAndRuby() throws Exception {
+        TaskOutputCache.CacheableTask task = TaskOutputCache.parse("assets | app/assets/** | public/assets").get(0);
+        String key = task.key(dir, "ruby-1.9.3");
+
+        assertEquals(key, task.key(dir, "ruby-1.9.3"));
+        assertFalse(key.equals(task.key(dir, "ruby-2.0.0")));
+
+        new File(dir, "app/assets/other.js").createNewFile();
+        assertFalse(key.equals(task.key(dir, "ruby-1.9.3")));
+    }
+
+    @Test
+    public void testStoresAndRestoresOutputs() throws Exception {
+        TaskOutputCache cache = new TaskOutputCache(store.getPath());
+        TaskOutputCache.CacheableTask task = TaskOutputCache.parse("assets | app/assets/** | public/assets").get(0);
+        new File(dir, "public/assets").mkdirs();
+        write(new File(dir, "public/assets/app.min.js"), "alert(1)");
+
+        assertFalse(cache.restore(new FilePath(dir), task, "ruby").isRestored());
+        String key = task.key(dir, "ruby");
+        assertTrue(cache.store(new FilePath(dir), task, key));
+        hudson.Util.deleteRecursive(new File(dir, "public"));
+
+        TaskOutputCache.Restoration restoration = cache.restore(new FilePath(dir), task, "ruby");
+        assertTrue(restoration.isRestored());
+        assertEquals(key, restoration.getKey());
+        assertTrue(new File(dir, "public/assets/app.min.js").isFile());
+    }
+
+    @Test
+    public void testRefusesToStoreNoOutputs() throws Exception {
+        TaskOutputCache cache = new TaskOutputCache(store.getPath());
+        TaskOutputCache.CacheableTask task = TaskOutputCache.parse("assets | app/assets/** | public/assets").get(0);
+
+        assertFalse(cache.store(new FilePath(dir), task, task.key(dir, "ruby")));
+        assertFalse(store.exists() && store.list().length > 0);
+    }
+
+    @Test
+    public void testCorruptArchiveIsAMiss() throws Exception {
+        TaskOutputCache cache = new TaskOutputCache(store.getPath());
+        TaskOutputCache.CacheableTask task = TaskOutputCache.parse("assets | app/assets/** | public/assets").get(0);
+        store.mkdirs();
+        write(new File(store, task.key(dir, "ruby") + ".tgz"), "not a tarball");
+        new File(dir, "public/assets").mkdirs();
+        write(new File(dir, "public/assets/stale.js"), "stale");
+
+        TaskOutputCache.Restoration restoration = cache.restore(new FilePath(dir), task, "ruby");
+
+        assertFalse(restoration.isRestored());
+        assertNotNull(restoration.getFailure());
+        assertFalse(new File(dir, "public/assets").exists());
+    }
+
+    @Test
+    public void testArchiveEscapingTheOutputsIsAMiss() throws Exception {
+        TaskOutputCache cache = new TaskOutputCache(store.getPath());
+        TaskOutputCache.CacheableTask task = TaskOutputCache.parse("assets | app/assets/** | public/assets").get(0);
+        TarOutputStream tar = archive(task.key(dir, "ruby"));
+        entry(tar, "public/assets/app.min.js", "alert(1)");
+        entry(tar, "public/assets/../../app/assets/app.js", "pwned");
+        tar.close();
+
+        TaskOutputCache.Restoration restoration = cache.restore(new FilePath(dir), task, "ruby");
+
+        assertFalse(restoration.isRestored());
+        assertTrue(restoration.getFailure().contains("outside of the outputs"));
+        assertEquals("alert(1);", hudson.Util.loadFile(new File(dir, "app/assets/app.js")));
+        assertFalse(new File(dir, "public/assets").exists());
+    }
+
+    @Test
+    public void testArchiveWithALinkIsAMiss() throws Exception {
+        TaskOutputCache cache = new TaskOutputCache(store.getPath());
+        TaskOutputCache.CacheableTask task = TaskOutputCache.parse("assets | app/assets/** | public/assets").get(0);
+        TarOutputStream tar = archive(task.key(dir, "ruby"));
+        TarEntry link = new TarEntry("public/assets/app", TarConstants.LF_SYMLINK);
+        link.setLinkName("../../app");
+        tar.putNextEntry(link);
+        tar.closeEntry();
+        entry(tar, "public/assets/app/assets/app.js", "pwned");
+        tar.close();
+
+        TaskOutputCache.Restoration restoration = cache.restore(new FilePath(dir), task, "ruby");
+
+        assertFalse(restoration.isRestored());
+        assertTrue(restoration.getFailure().contains("not a plain file"));
+        assertEquals("alert(1);", hudson.Util.loadFile(new File(dir, "app/assets/app.js")));
+    }
+
+    @Test
+    public void testIsWithin() {
+        String[] outputs = {"public/assets", "lib/generated/"};
+
+        assertTrue(TaskOutputCache.isWithin("public/assets/app.js", outputs, false));
+        assertTrue(TaskOutputCache.isWithin("./lib/generated/a/b.rb", outputs, false));
+        assertTrue(TaskOutputCache.isWithin("public/", outputs, true));
+        assertFalse(TaskOutputCache.isWithin("public/", outputs, false));
+        assertFalse(TaskOutputCache.isWithin("public/assets2/app.js", outputs, false));
+        assertFalse(TaskOutputCache.isWithin("public/assets/../../Gemfile", outputs, false));
+        assertFalse(TaskOutputCache.isWithin("/public/assets/app.js", outputs, false));
+        assertFalse(TaskOutputCache.isWithin("C:/public/assets/app.js", outputs, false));
+    }
+
+    private TarOutputStream archive(String key) throws IOException {
+        store.mkdirs();
+        return new TarOutputStream(new GZIPOutputStream(new FileOutputStream(new File(store, key + ".tgz"))));
+    }
+
+    private static void entry(TarOutputStream tar, String name, String content) throws IOException {
+        TarEntry entry = new TarEntry(name);
+        entry.setSize(content.length());
+        tar.putNextEntry(entry);
+        tar.write(content.getBytes());
+        tar.closeEntry();
+    }
+
+    private static void write(File file, String content) throws IOException {
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package hudson.plugins.rake;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestTaskScheduler {
+
+    private static final String RAKEFILE =
+        "import 'extra.rake'\n" +
+        "namespace :ns do\n" +
+        "  task(:a) { puts 'ran a' }\n" +
+        "  task(:b => :a) { puts 'ran b' }\n" +
+        "end\n" +
+        "task :default => 'ns:b'\n";
+
+    private File project;
+
+    @Before
+    public void setUp() throws IOException {
+        project = File.createTempFile("project", "");
+        project.delete();
+        project.mkdirs();
+        write(new File(project, "Rakefile"), RAKEFILE);
+        write(new File(project, "extra.rake"), "task :extra => 'ns:a'\n");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        hudson.Util.deleteRecursive(project);
+    }
+
+    @Test
+    public void testResolvesNamespacedPrerequisites() throws Exception {
+        assumeTrue(hasRake());
+
+        TaskGraph graph = TaskGraph.parse(rake(null, "--execute-continue", TaskScheduler.PRINT_GRAPH));
+
+        assertEquals(Collections.singletonList("ns:a"), graph.getTaskPrerequisites("ns:b"));
+        assertEquals(Collections.singletonList("ns:a"), graph.getTaskPrerequisites("extra"));
+        assertEquals(Arrays.asList("ns:a", "ns:b", "default"),
+            Arrays.asList(graph.closure(Collections.singletonList("default")).toArray()));
+        assertTrue(graph.getSources().contains(new File(project, "extra.rake").getCanonicalPath()));
+    }
+
+    @Test
+    public void testSkipsScheduledNamespacedPrerequisites() throws Exception {
+        assumeTrue(hasRake());
+
+        String output = rake("ns:a,ns:b", "--execute-continue", TaskScheduler.SKIP_SCHEDULED_PREREQUISITES, "ns:b");
+
+        assertTrue(output.contains("ran b"));
+        assertFalse(output.contains("ran a"));
+    }
+
+    private String rake(String scheduled, String... args) throws IOException, InterruptedException {
+        String[] command = new String[args.length + 1];
+        command[0] = "rake";
+        System.arraycopy(args, 0, command, 1, args.length);
+        ProcessBuilder builder = new ProcessBuilder(command).directory(project).redirectErrorStream(true);
+        if (scheduled != null) {
+            builder.environment().put(TaskScheduler.SCHEDULED_ENV, scheduled);
+        }
+        Process process = builder.start();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = process.getInputStream();
+        byte[] buf = new byte[4096];
+        int len;
+        while ((len = in.read(buf)) >= 0) {
+            out.write(buf, 0, len);
+        }
+        assertEquals(out.toString(), 0, process.waitFor());
+        return out.toString();
+    }
+
+    private static boolean hasRake() {
+        for (String dir : System.getenv("PATH").split(File.pathSeparator)) {
+            if (new File(dir, "rake").isFile()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void write(File file, String content) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes());
+        } finally {
+            out.close();
+        }
+    }
+}
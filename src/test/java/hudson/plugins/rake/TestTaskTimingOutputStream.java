@@ -0,0 +1,30 @@
+package hudson.plugins.rake;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class TestTaskTimingOutputStream {
+
+    @Test
+    public void testRecordsTimingsAndPassesOutputThrough() throws IOException {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        RakeTimingAction timings = new RakeTimingAction();
+        TaskTimingOutputStream out = new TaskTimingOutputStream(log, timings);
+
+        out.write(("compiling\n" +
+            "** Jenkins-Timing 1500 compile\n" +
+            "[spec] ** Jenkins-Timing 250 spec:unit\n" +
+            "** Jenkins-Timing 100 compile\n" +
+            "done").getBytes());
+        out.close();
+
+        assertEquals("compiling\ndone", log.toString());
+        assertEquals(Long.valueOf(1600), timings.getDuration("compile"));
+        assertEquals(Long.valueOf(250), timings.getDuration("spec:unit"));
+        assertEquals("compile", timings.getTimings().get(0).getKey());
+    }
+}
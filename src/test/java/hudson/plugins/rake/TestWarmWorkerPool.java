@@ -0,0 +1,55 @@
+package hudson.plugins.rake;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class TestWarmWorkerPool {
+
+    @Test
+    public void testCopiesFramedOutputWithNulBytes() throws IOException {
+        ByteArrayOutputStream replies = new ByteArrayOutputStream();
+        replies.write("out 6\n".getBytes());
+        replies.write(new byte[] {'a', 0, 'b', '\n', (byte) 0xc3, (byte) 0xa9});
+        replies.write("out 12\nexit 3\nmore\n".getBytes());
+        replies.write("exit 2\n".getBytes());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int status = WarmWorkerPool.copyOutput(new ByteArrayInputStream(replies.toByteArray()), out);
+
+        assertEquals(2, status);
+        byte[] copied = out.toByteArray();
+        assertEquals(18, copied.length);
+        assertEquals(0, copied[1]);
+        assertEquals((byte) 0xa9, copied[5]);
+        assertEquals("exit 3\nmore\n", new String(copied, 6, 12));
+    }
+
+    @Test(expected = IOException.class)
+    public void testFailsWithoutExitStatus() throws IOException {
+        WarmWorkerPool.copyOutput(new ByteArrayInputStream("out 3\nabc".getBytes()), new ByteArrayOutputStream());
+    }
+
+    @Test
+    public void testErrorTailKeepsTheEndOfTheOutput() {
+        WarmWorkerPool.ErrorTail errors = new WarmWorkerPool.ErrorTail();
+        assertEquals("", errors.describe());
+
+        byte[] line = new byte[1000];
+        java.util.Arrays.fill(line, (byte) 'x');
+        for (int i = 0; i < 10; i++) {
+            errors.append(line, line.length);
+        }
+        byte[] last = "LoadError: cannot load such file -- rake\n".getBytes();
+        errors.append(last, last.length);
+
+        String described = errors.describe();
+        assertTrue(described.startsWith("\nrake worker error output:\nxxx"));
+        assertTrue(described.endsWith("cannot load such file -- rake\n"));
+        assertEquals(4096, described.length() - "\nrake worker error output:\n".length());
+    }
+}